@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce.jmh;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Input data for the benchmarks. Everything is generated from a fixed seed so
+ * that every fork, parameter combination and run sees the same bytes.
+ */
+final class Fixtures {
+
+    static final long SEED = 0x2016L;
+
+    private static final int VOCABULARY = 20000;
+
+    private Fixtures() {
+    }
+
+    static byte[] bytes(int size) {
+        byte[] data = new byte[size];
+        new Random(SEED).nextBytes(data);
+        return data;
+    }
+
+    /*
+     * Lines of words drawn with a skewed distribution, so a few keys are hot
+     * and there is a long tail, much like real text. The extra words are put
+     * at the head of the vocabulary.
+     */
+    static byte[] text(int size, int wordsPerLine, String... extra) {
+        Random random = new Random(SEED);
+
+        byte[][] words = new byte[VOCABULARY][];
+        for (int i = 0; i < extra.length; i++) {
+            words[i] = extra[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        for (int i = extra.length; i < words.length; i++) {
+            words[i] = new byte[3 + random.nextInt(8)];
+            for (int j = 0; j < words[i].length; j++) {
+                words[i][j] = (byte) ('a' + random.nextInt(26));
+            }
+        }
+
+        byte[] text = new byte[size];
+        int position = 0, column = 0;
+        while (position < size) {
+            double r = random.nextDouble();
+            byte[] word = words[(int) (r * r * r * VOCABULARY)];
+            for (int i = 0; i < word.length && position < size; i++) {
+                text[position++] = word[i];
+            }
+            if (position < size) {
+                text[position++] = (byte) (++column % wordsPerLine == 0 ? '\n' : ' ');
+            }
+        }
+        return text;
+    }
+
+    // Slices of roughly chunkSize bytes, extended to the end of the line
+    static List<ByteBuffer> lines(byte[] text, int chunkSize) {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < text.length) {
+            int end = Math.min(text.length, start + chunkSize);
+            while (end < text.length && text[end - 1] != '\n') {
+                end++;
+            }
+            chunks.add(ByteBuffer.wrap(text, start, end - start).slice());
+            start = end;
+        }
+        return chunks;
+    }
+
+    static List<String> strings(byte[] text, int chunkSize) {
+        List<String> chunks = new ArrayList<>();
+        for (ByteBuffer chunk : lines(text, chunkSize)) {
+            chunks.add(new String(text, chunk.arrayOffset(), chunk.remaining(), StandardCharsets.ISO_8859_1));
+        }
+        return chunks;
+    }
+
+    // Slices of exactly chunkSize bytes, rounded down to a whole record
+    static List<ByteBuffer> records(byte[] data, int chunkSize, int recordSize) {
+        int size = Math.max(recordSize, chunkSize - chunkSize % recordSize);
+        List<ByteBuffer> chunks = new ArrayList<>();
+        for (int start = 0; start < data.length; start += size) {
+            chunks.add(ByteBuffer.wrap(data, start, Math.min(size, data.length - start)).slice());
+        }
+        return chunks;
+    }
+}
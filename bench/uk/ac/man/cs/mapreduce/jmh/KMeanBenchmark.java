@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import uk.ac.man.cs.mapreduce.benchmarks.KMean;
+
+public class KMeanBenchmark extends Workload {
+
+    @Param({"100000"})
+    public int points;
+
+    @Param({"16"})
+    public int clusters;
+
+    @Param({"3"})
+    public int dimensions;
+
+    @Param({"1000"})
+    public int gridSize;
+
+    private final KMean kMean = new KMean();
+
+    @Setup(Level.Trial)
+    public void generate() {
+        kMean.setSeed(Fixtures.SEED);
+        kMean.generate(dimensions, clusters, gridSize, points);
+    }
+
+    @Benchmark
+    public long kMean() throws Exception {
+        return kMean.run(runtime);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce.jmh;
+
+import java.util.List;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import uk.ac.man.cs.mapreduce.KeyValue;
+import uk.ac.man.cs.mapreduce.benchmarks.StringMatch;
+
+public class StringMatchBenchmark extends Workload {
+
+    @Param({"16777216"})
+    public int inputSize;
+
+    @Param({"65536"})
+    public int chunkSize;
+
+    private final StringMatch stringMatch = new StringMatch();
+
+    private List<String> input;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        // StringMatch reads one word per line, like its keys file
+        byte[] text = Fixtures.text(inputSize, 1, "Helloworld", "howareyou", "ferrari", "whotheman");
+        input = Fixtures.strings(text, chunkSize);
+    }
+
+    @Benchmark
+    public List<KeyValue<String, Integer>> match() throws Exception {
+        return stringMatch.mrj.run(input, runtime);
+    }
+}
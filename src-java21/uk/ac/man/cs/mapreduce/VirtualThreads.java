@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Java 21 version of VirtualThreads, packed under META-INF/versions/21. Each
+ * map task gets a virtual thread, so a blocked mapper only parks its own
+ * thread and leaves the carrier free. The concurrency is limited by the map
+ * phase itself.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return true;
+    }
+
+    static ExecutorService newExecutor(int concurrency) {
+        return Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name("mapreduce-map-", 0).factory());
+    }
+}
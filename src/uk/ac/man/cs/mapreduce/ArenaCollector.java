@@ -0,0 +1,406 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/*
+ * Partitioned collector that keeps values serialised in chunks of direct
+ * memory instead of as objects on the heap. Each worker carves blocks out of
+ * chunks of its own and appends a key's values to its current block, so the
+ * heap grows with the number of keys rather than the number of values. The
+ * blocks of a key are linked together and double in size, up to a limit, so
+ * that hot keys are read mostly sequentially.
+ */
+class ArenaCollector<K, V> extends PartitionedCollector<K, V, ArenaCollector.Values<V>> {
+
+    static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private static final int MIN_BLOCK_SIZE = 32;
+
+    private static final int MAX_BLOCK_SIZE = 8192;
+
+    // The address of the next block and the number of bytes used.
+    private static final int BLOCK_HEADER = 12;
+
+    private static final long NIL = -1L;
+
+    private final Arena<V> arena;
+
+    ArenaCollector(int parallelism, Codec<V> codec, int chunkSize) {
+        this(parallelism, new Arena<>(codec, chunkSize));
+    }
+
+    // Values are appended by the buffers, which own the chunk being written,
+    // so no accumulator is needed.
+    private ArenaCollector(int parallelism, Arena<V> arena) {
+        super(parallelism, () -> new Values<>(arena), null, Values::append);
+        this.arena = arena;
+    }
+
+    // Must be called once the map phase has completed and before the
+    // buffers are merged.
+    void seal() {
+        arena.seal();
+    }
+
+    @Override
+    Buffer newBuffer() {
+        return new ArenaBuffer();
+    }
+
+    private static final class Arena<V> {
+
+        private final Codec<V> codec;
+
+        private final int chunkSize;
+
+        private ByteBuffer[] chunks = new ByteBuffer[16];
+
+        private int count;
+
+        private Arena(Codec<V> codec, int chunkSize) {
+            this.codec = codec;
+            this.chunkSize = chunkSize;
+        }
+
+        // A block larger than a chunk gets a chunk of its own.
+        private synchronized int allocate(int size) {
+            if (count == chunks.length) {
+                chunks = Arrays.copyOf(chunks, count << 1);
+            }
+            chunks[count] = ByteBuffer.allocateDirect(Math.max(chunkSize, size));
+            return count++;
+        }
+
+        private synchronized ByteBuffer chunk(int index) {
+            return chunks[index];
+        }
+
+        private synchronized void seal() {
+            chunks = Arrays.copyOf(chunks, count);
+        }
+
+        // Only valid once sealed, when chunks no longer change.
+        private ByteBuffer sealed(long address) {
+            return chunks[(int) (address >>> 32)];
+        }
+    }
+
+    private final class ArenaBuffer extends PartitionBuffer {
+
+        private final Scratch scratch = new Scratch();
+
+        private final DataOutputStream out = new DataOutputStream(scratch);
+
+        private ByteBuffer chunk;
+
+        private int index;
+
+        @Override
+        public void emit(K key, V value) {
+            scratch.count = 0;
+            try {
+                arena.codec.write(out, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            Values<V> values = values(key);
+            if (values.capacity - values.used < scratch.count) {
+                int capacity = values.capacity == 0 ? MIN_BLOCK_SIZE : values.capacity << 1;
+                capacity = Math.max(scratch.count,
+                        Math.min(capacity, Math.min(MAX_BLOCK_SIZE, arena.chunkSize)));
+                values.link(allocate(BLOCK_HEADER + capacity), chunk, capacity);
+            }
+            values.write(scratch.buf, scratch.count);
+        }
+
+        private long allocate(int size) {
+            if (chunk == null || chunk.remaining() < size) {
+                index = arena.allocate(size);
+                chunk = arena.chunk(index);
+            }
+
+            int offset = chunk.position();
+            chunk.position(offset + size);
+            chunk.putLong(offset, NIL);
+            chunk.putInt(offset + 8, 0);
+            return ((long) index << 32) | offset;
+        }
+    }
+
+    // Unlike ByteArrayOutputStream, does not lock on every byte.
+    private static final class Scratch extends OutputStream {
+
+        private byte[] buf = new byte[64];
+
+        private int count;
+
+        @Override
+        public void write(int b) {
+            if (count == buf.length) {
+                buf = Arrays.copyOf(buf, count << 1);
+            }
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (count + len > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(count + len, buf.length << 1));
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+    }
+
+    /*
+     * The values of one key, as handed to the reducer. Elements are decoded
+     * on access and never cached; reading them in order decodes each once,
+     * while going backwards starts again from the first block.
+     */
+    static final class Values<V> extends AbstractList<V> {
+
+        private final Arena<V> arena;
+
+        private long head = NIL, tail = NIL;
+
+        private int size;
+
+        // The block being written while mapping, with a view of its chunk
+        // whose position is this key's own.
+        private ByteBuffer tailChunk, tailView;
+
+        private int used, capacity;
+
+        private int cursor;
+
+        private long cursorBlock;
+
+        private ChunkInput in;
+
+        private Values(Arena<V> arena) {
+            this.arena = arena;
+        }
+
+        private void link(long block, ByteBuffer chunk, int capacity) {
+            if (tail == NIL) {
+                head = block;
+            } else {
+                tailChunk.putLong((int) tail, block);
+            }
+            this.tail = block;
+            this.tailChunk = chunk;
+            this.tailView = chunk.duplicate();
+            this.used = 0;
+            this.capacity = capacity;
+        }
+
+        private void write(byte[] bytes, int length) {
+            tailView.position((int) tail + BLOCK_HEADER + used);
+            tailView.put(bytes, 0, length);
+            used += length;
+            tailChunk.putInt((int) tail + 8, used);
+            size++;
+        }
+
+        // Links the other chain after this one, only once sealed.
+        private void append(Values<V> other) {
+            if (other.size == 0) {
+                return;
+            }
+            if (size == 0) {
+                head = other.head;
+            } else {
+                arena.sealed(tail).putLong((int) tail, other.head);
+            }
+            tail = other.tail;
+            size += other.size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public V get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+
+            if (in == null) {
+                in = new ChunkInput();
+            }
+            if (index < cursor || cursor == 0) {
+                cursor = 0;
+                open(head);
+            }
+
+            try {
+                V value;
+                do {
+                    while (in.position == in.end) {
+                        open(in.chunk.getLong((int) cursorBlock));
+                    }
+                    value = arena.codec.read(in);
+                } while (cursor++ < index);
+                return value;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void open(long block) {
+            cursorBlock = block;
+            in.open(arena.sealed(block));
+            in.position = (int) block + BLOCK_HEADER;
+            in.end = in.position + in.chunk.getInt((int) block + 8);
+        }
+    }
+
+    // Reads with absolute indexes, or through a view of its own for bulk
+    // reads, so readers never share a buffer position.
+    private static final class ChunkInput implements DataInput {
+
+        private ByteBuffer chunk, view;
+
+        private int position, end;
+
+        private void open(ByteBuffer chunk) {
+            if (this.chunk != chunk) {
+                this.chunk = chunk;
+                this.view = chunk.duplicate();
+            }
+        }
+
+        private int advance(int n) throws EOFException {
+            if (position + n > end) {
+                throw new EOFException();
+            }
+            int start = position;
+            position += n;
+            return start;
+        }
+
+        @Override
+        public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            view.position(advance(len));
+            view.get(b, off, len);
+        }
+
+        @Override
+        public int skipBytes(int n) {
+            int skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            return chunk.get(advance(1));
+        }
+
+        @Override
+        public int readUnsignedByte() throws IOException {
+            return readByte() & 0xFF;
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            return chunk.getShort(advance(2));
+        }
+
+        @Override
+        public int readUnsignedShort() throws IOException {
+            return readShort() & 0xFFFF;
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            return chunk.getChar(advance(2));
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            return chunk.getInt(advance(4));
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            return chunk.getLong(advance(8));
+        }
+
+        @Override
+        public float readFloat() throws IOException {
+            return chunk.getFloat(advance(4));
+        }
+
+        @Override
+        public double readDouble() throws IOException {
+            return chunk.getDouble(advance(8));
+        }
+
+        // As DataInputStream, a byte per character up to a line terminator
+        // or the end of the block, which values never cross.
+        @Override
+        public String readLine() {
+            if (position == end) {
+                return null;
+            }
+            StringBuilder line = new StringBuilder();
+            while (position < end) {
+                int c = chunk.get(position++) & 0xFF;
+                if (c == '\n') {
+                    break;
+                }
+                if (c == '\r') {
+                    if (position < end && chunk.get(position) == '\n') {
+                        position++;
+                    }
+                    break;
+                }
+                line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        @Override
+        public String readUTF() throws IOException {
+            return DataInputStream.readUTF(this);
+        }
+    }
+}
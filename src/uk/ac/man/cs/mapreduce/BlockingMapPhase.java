@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Maps a list on the runtime's map threads rather than the fork/join pool,
+ * for mappers that block. The input is cut into runs of records that are
+ * handed out in order, with at most concurrency runs mapping at once. Each
+ * run takes an emitter from the collector for its duration, so the number
+ * of buffers follows the concurrency and not the number of runs.
+ */
+final class BlockingMapPhase<I, K, V> implements MapPhase<K, V> {
+
+    private final Mapper<I, K, V> mapper;
+
+    private final List<I> inputs;
+
+    private final ExecutorService executor;
+
+    private final int concurrency;
+
+    BlockingMapPhase(Mapper<I, K, V> mapper, List<I> inputs, ExecutorService executor, int concurrency) {
+        this.mapper = mapper;
+        this.inputs = inputs;
+        this.executor = executor;
+        this.concurrency = concurrency;
+    }
+
+    @Override
+    public void map(ForkJoinPool fjp, Collector<K, V> emitters) {
+        int size = inputs.size();
+        int granularity = Math.max(1, size / (concurrency << 2));
+
+        Semaphore permits = new Semaphore(concurrency);
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Future<?>> runs = new ArrayList<>();
+
+        try {
+            for (int lo = 0; lo < size && !failed.get(); lo += granularity) {
+                List<I> run = inputs.subList(lo, Math.min(size, lo + granularity));
+
+                ForkJoinPool.managedBlock(new PermitBlocker(permits));
+
+                runs.add(executor.submit(() -> {
+                    try {
+                        Emitter<K, V> emitter = emitters.acquire();
+                        try {
+                            for (I i : run) {
+                                mapper.map(i, emitter);
+                            }
+                        } finally {
+                            emitters.release(emitter);
+                        }
+                    } catch (Throwable e) {
+                        failed.set(true);
+                        throw e;
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+
+            for (Future<?> run : runs) {
+                ForkJoinPool.managedBlock(new RunBlocker(run));
+                run.get();
+            }
+        } catch (InterruptedException e) {
+            cancel(runs);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while mapping");
+        } catch (ExecutionException e) {
+            cancel(runs);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            // A checked exception thrown sneakily by the mapper
+            throw new CompletionException(cause);
+        }
+    }
+
+    // The job may be running on a pool worker, through runAsync, so waits go
+    // through managedBlock to let the pool compensate for the parked thread.
+    private static final class PermitBlocker implements ForkJoinPool.ManagedBlocker {
+
+        private final Semaphore permits;
+
+        private boolean acquired;
+
+        PermitBlocker(Semaphore permits) {
+            this.permits = permits;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (!acquired) {
+                permits.acquire();
+                acquired = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return acquired || (acquired = permits.tryAcquire());
+        }
+    }
+
+    private static final class RunBlocker implements ForkJoinPool.ManagedBlocker {
+
+        private final Future<?> run;
+
+        RunBlocker(Future<?> run) {
+            this.run = run;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            try {
+                run.get();
+            } catch (ExecutionException | CancellationException ignore) {
+                // Reported by the caller's own get
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return run.isDone();
+        }
+    }
+
+    private static void cancel(List<Future<?>> runs) {
+        for (Future<?> run : runs) {
+            run.cancel(true);
+        }
+    }
+}
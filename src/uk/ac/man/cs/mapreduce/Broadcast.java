@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+/*
+ * Read-only state shared with the mappers of an iterative job. Only the
+ * driver replaces the value, between rounds, so mappers always see the
+ * state of the round they belong to.
+ */
+public final class Broadcast<T> {
+
+    private volatile T value;
+
+    public Broadcast() {
+    }
+
+    public Broadcast(T value) {
+        this.value = value;
+    }
+
+    public T get() {
+        return value;
+    }
+
+    void set(T value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Immutable key over a range of bytes, compared byte by byte. The hash is
+ * the same as String.hashCode for ASCII text and is computed once. The
+ * public constructors copy the bytes; only the Interner and the codec hand
+ * over arrays that nothing else can change.
+ */
+public final class ByteSlice implements Comparable<ByteSlice> {
+
+    private final byte[] bytes;
+
+    private final int offset;
+
+    private final int length;
+
+    private final int hash;
+
+    public ByteSlice(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public ByteSlice(byte[] bytes, int offset, int length) {
+        this(Arrays.copyOfRange(bytes, offset, offset + length), 0, length, hash(bytes, offset, length));
+    }
+
+    // Shares the array, which the caller must never change.
+    ByteSlice(byte[] bytes, int offset, int length, int hash) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.hash = hash;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte byteAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        return bytes[offset + index];
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+
+    public static int hash(byte[] bytes, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + (bytes[i] & 0xFF);
+        }
+        return h;
+    }
+
+    private boolean matches(byte[] other, int otherOffset, int otherLength) {
+        if (length != otherLength) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != other[otherOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int compareTo(ByteSlice other) {
+        int n = Math.min(length, other.length);
+        for (int i = 0; i < n; i++) {
+            int diff = (bytes[offset + i] & 0xFF) - (other.bytes[other.offset + i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - other.length;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof ByteSlice)) {
+            return false;
+        }
+        ByteSlice other = (ByteSlice) obj;
+        return hash == other.hash && matches(other.bytes, other.offset, other.length);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /*
+     * Returns one shared slice per distinct byte sequence, so a worker
+     * allocates a key only the first time it sees a word. Not thread safe,
+     * each worker keeps its own. Once maxSize slices are held it starts
+     * again from empty, which only costs the words seen since another copy.
+     */
+    public static final class Interner {
+
+        private final int maxSize;
+
+        private ByteSlice[] table = new ByteSlice[1 << 10];
+
+        private int shift = 32 - 10;
+
+        private int size;
+
+        public Interner() {
+            this(Integer.MAX_VALUE);
+        }
+
+        public Interner(int maxSize) {
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize must be positive");
+            }
+            this.maxSize = maxSize;
+        }
+
+        public ByteSlice intern(byte[] bytes, int offset, int length) {
+            return intern(bytes, offset, length, hash(bytes, offset, length));
+        }
+
+        // For callers that hashed the bytes while reading them, h must be
+        // the value hash(bytes, offset, length) would return.
+        public ByteSlice intern(byte[] bytes, int offset, int length, int h) {
+            int mask = table.length - 1;
+            int i = (h * 0x9E3779B9) >>> shift;
+
+            ByteSlice slice;
+            while ((slice = table[i]) != null) {
+                if (slice.hash == h && slice.matches(bytes, offset, length)) {
+                    return slice;
+                }
+                i = (i + 1) & mask;
+            }
+
+            slice = new ByteSlice(Arrays.copyOfRange(bytes, offset, offset + length), 0, length, h);
+            if (size == maxSize) {
+                clear();
+                i = (h * 0x9E3779B9) >>> shift;
+            }
+            table[i] = slice;
+
+            if (++size > table.length >> 1) {
+                resize();
+            }
+
+            return slice;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            Arrays.fill(table, null);
+            size = 0;
+        }
+
+        private void resize() {
+            ByteSlice[] old = table;
+            table = new ByteSlice[old.length << 1];
+            shift--;
+            int mask = table.length - 1;
+            for (ByteSlice slice : old) {
+                if (slice != null) {
+                    int i = (slice.hash * 0x9E3779B9) >>> shift;
+                    while (table[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    table[i] = slice;
+                }
+            }
+        }
+    }
+}
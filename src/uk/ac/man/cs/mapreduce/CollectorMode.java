@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+public enum CollectorMode {
+
+    /*
+     * All workers emit into one concurrent map of synchronised value lists.
+     */
+    SHARED,
+    
+    /*
+     * Each worker emits into its own hash-partitioned buffers without locking,
+     * the buffers are merged partition by partition before the reduce phase.
+     */
+    PARTITIONED
+}
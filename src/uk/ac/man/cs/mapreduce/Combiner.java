@@ -0,0 +1,31 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+/*
+ * What the combining path needs to fold each value into a Holder per key as
+ * it is emitted. Collecting per worker also has to merge holders, which only
+ * a CombiningReducer can do, so the optimiser's combiners always go through
+ * the shared collector.
+ */
+interface Combiner<V, H extends Holder> {
+
+    public H create();
+
+    public void accumulate(H holder, V value);
+
+    public V result(H holder);
+}
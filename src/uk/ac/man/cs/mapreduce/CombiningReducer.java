@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.List;
+
+/*
+ * A reducer that folds each value into a per-key Holder as it is emitted, so
+ * that no per-key list of values is ever built. MapReduce detects instances
+ * of this class and runs them through its combining path.
+ */
+public abstract class CombiningReducer<K, V, H extends Holder> extends Reducer<K, V> implements Combiner<V, H> {
+
+    @Override
+    public abstract H create();
+
+    @Override
+    public abstract void accumulate(H holder, V value);
+
+    public abstract void merge(H holder, H other);
+
+    @Override
+    public abstract V result(H holder);
+
+    @Override
+    public void reduce(K key, List<V> values, Emitter<K, V> emitter) {
+        H holder = create();
+
+        for (V value : values) {
+            accumulate(holder, value);
+        }
+
+        emitter.emit(key, result(holder));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+class DenseCollector<K, V, B> extends WorkerCollector<K, V, B> {
+
+    private final int size;
+
+    private final ToIntFunction<? super K> index;
+
+    DenseCollector(
+            int size, ToIntFunction<? super K> index, Supplier<B> factory,
+            BiConsumer<B, V> accumulator, BiConsumer<B, B> combiner) {
+        super(factory, accumulator, combiner);
+        this.size = size;
+        this.index = index;
+    }
+
+    @Override
+    Buffer newBuffer() {
+        return new DenseBuffer();
+    }
+
+    @Override
+    Entry<K, B>[] merge(ForkJoinPool fjp) {
+        Buffer[] workers = getBuffers();
+
+        Object[] keys = new Object[size];
+        Object[] values = new Object[size];
+
+        int granularity = Math.max(64, size / (fjp.getParallelism() << 2));
+
+        fjp.invoke(new IndexMerger(workers, keys, values, granularity, 0, size));
+
+        int count = 0;
+        for (Object value : values) {
+            if (value != null) {
+                count++;
+            }
+        }
+
+        Entry<K, B>[] intermediates = new Entry[count];
+
+        count = 0;
+        for (int i = 0; i < size; i++) {
+            if (values[i] != null) {
+                intermediates[count++] = new SimpleImmutableEntry<>((K) keys[i], (B) values[i]);
+            }
+        }
+
+        return intermediates;
+    }
+
+    private class DenseBuffer extends Buffer {
+
+        private final Object[] keys = new Object[size];
+
+        private final Object[] values = new Object[size];
+
+        @Override
+        B values(K key) {
+            int i = index.applyAsInt(key);
+            if (i < 0 || i >= size) {
+                throw new IllegalArgumentException(
+                        "key " + key + " has dense index " + i + ", outside [0, " + size + ")");
+            }
+            B value = (B) values[i];
+            if (value == null) {
+                value = factory.get();
+                values[i] = value;
+                keys[i] = key;
+            }
+            return value;
+        }
+    }
+
+    private class IndexMerger extends RecursiveAction {
+
+        private final Buffer[] workers;
+
+        private final Object[] keys, values;
+
+        private final int granularity;
+
+        private final int lo, hi;
+
+        private IndexMerger(
+                Buffer[] workers, Object[] keys, Object[] values,
+                int granularity, int lo, int hi) {
+            this.workers = workers;
+            this.keys = keys;
+            this.values = values;
+            this.granularity = granularity;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > granularity) {
+                int mi = lo + ((hi - lo) >> 1);
+                invokeAll(
+                        new IndexMerger(workers, keys, values, granularity, lo, mi),
+                        new IndexMerger(workers, keys, values, granularity, mi, hi));
+            } else {
+                for (Buffer buffer : workers) {
+                    DenseBuffer worker = (DenseBuffer) buffer;
+                    for (int i = lo; i < hi; i++) {
+                        B value = (B) worker.values[i];
+                        if (value == null) {
+                            continue;
+                        }
+                        if (values[i] == null) {
+                            keys[i] = worker.keys[i];
+                            values[i] = value;
+                        } else {
+                            combiner.accept((B) values[i], value);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
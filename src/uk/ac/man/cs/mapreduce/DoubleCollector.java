@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+class DoubleCollector<K> implements Collector<K, Double> {
+
+    private final WorkerCollector<K, Double, DoubleList> collector;
+
+    DoubleCollector(WorkerCollector<K, Double, DoubleList> collector) {
+        this.collector = collector;
+    }
+
+    @Override
+    public Emitter<K, Double> acquire() {
+        return new DoubleBuffer(collector.acquire());
+    }
+
+    @Override
+    public void release(Emitter<K, Double> emitter) {
+        collector.release(((DoubleBuffer) emitter).buffer);
+    }
+
+    private class DoubleBuffer implements Emitter<K, Double>, DoubleEmitter<K> {
+
+        private final WorkerCollector<K, Double, DoubleList>.Buffer buffer;
+
+        private DoubleBuffer(WorkerCollector<K, Double, DoubleList>.Buffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void emit(K key, Double value) {
+            buffer.emit(key, value);
+        }
+
+        @Override
+        public void emit(K key, double value) {
+            buffer.values(key).add(value);
+        }
+
+        // Each key goes straight to its list in the buffer, by index when the
+        // keys are dense, whatever order the batch is in.
+        @Override
+        public void emitAll(K[] keys, double[] values) {
+            if (keys.length != values.length) {
+                throw new IllegalArgumentException("keys and values differ in length");
+            }
+            for (int i = 0; i < keys.length; i++) {
+                buffer.values(keys[i]).add(values[i]);
+            }
+        }
+
+        @Override
+        public void emitAll(Map<? extends K, ? extends Double> values) {
+            for (Entry<? extends K, ? extends Double> kv : values.entrySet()) {
+                buffer.values(kv.getKey()).add(kv.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+final class DoubleList extends AbstractList<Double> implements RandomAccess {
+
+    double[] elements;
+
+    int size;
+
+    DoubleList() {
+        elements = new double[4];
+    }
+
+    DoubleList(Collection<Double> values) {
+        elements = new double[Math.max(4, values.size())];
+        for (Double value : values) {
+            elements[size++] = value;
+        }
+    }
+
+    void add(double value) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size << 1);
+        }
+        elements[size++] = value;
+    }
+
+    void append(DoubleList other) {
+        if (size + other.size > elements.length) {
+            elements = Arrays.copyOf(elements, Math.max(size + other.size, size << 1));
+        }
+        System.arraycopy(other.elements, 0, elements, size, other.size);
+        size += other.size;
+    }
+
+    @Override
+    public boolean add(Double value) {
+        add(value.doubleValue());
+        return true;
+    }
+
+    @Override
+    public Double get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return elements[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
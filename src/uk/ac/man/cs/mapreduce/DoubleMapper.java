@@ -0,0 +1,31 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+public interface DoubleMapper<I, K> extends Mapper<I, K, Double> {
+    
+    // Named apart from map so that a lambda emitter is never ambiguous.
+    public void mapDouble(I input, DoubleEmitter<K> emitter);
+
+    @Override
+    public default void map(I input, Emitter<K, Double> emitter) {
+        if (emitter instanceof DoubleEmitter) {
+            mapDouble(input, (DoubleEmitter<K>) emitter);
+        } else {
+            mapDouble(input, emitter::emit);
+        }
+    }
+}
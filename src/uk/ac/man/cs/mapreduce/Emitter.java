@@ -15,8 +15,28 @@
  */
 package uk.ac.man.cs.mapreduce;
 
+import java.util.Map;
+import java.util.Map.Entry;
+
 public interface Emitter<K, V> {
     
     public void emit(K key, V value);
+
+    // Emits each key with the value at the same index. The engine's own
+    // emitters take the batch as a whole rather than pair by pair.
+    public default void emitAll(K[] keys, V[] values) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("keys and values differ in length");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            emit(keys[i], values[i]);
+        }
+    }
+
+    public default void emitAll(Map<? extends K, ? extends V> values) {
+        for (Entry<? extends K, ? extends V> kv : values.entrySet()) {
+            emit(kv.getKey(), kv.getValue());
+        }
+    }
 }
 
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+public enum ExecutorMode {
+
+    /*
+     * The job is priced from what its inputs cost to map in the previous
+     * run. When the whole input would cost less than handing it to the pool
+     * it runs as SEQUENTIAL, where it can, otherwise as FORK_JOIN. A job
+     * with few inputs that goes to the pool times one of them on the way,
+     * for the next run.
+     */
+    AUTOMATIC,
+
+    /*
+     * Tasks are split recursively on the runtime's fork/join pool and
+     * balanced by work stealing.
+     */
+    FORK_JOIN,
+
+    /*
+     * The input is cut into ranges of equal weight that are dealt out,
+     * heaviest first, to the queues of a fixed set of threads, with no
+     * stealing. Merge and reduce still run on the fork/join pool.
+     */
+    FIXED_THREADS,
+
+    /*
+     * The whole job runs in the calling thread. It cannot be combined with
+     * spilling, off-heap values, dense keys or PARTITIONED collection, and
+     * AUTOMATIC never picks it for a job with any of them.
+     */
+    SEQUENTIAL
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.concurrent.ForkJoinTask;
+
+/*
+ * Decides when a runner should stop splitting its range. The cost of a unit
+ * of work (an input record, or a value in the reduce phase) is measured on a
+ * sample before the first split, and every leaf task feeds its own timing
+ * back in, so the threshold keeps moving towards tasks of TARGET_NANOS.
+ * Idle workers show up as an empty surplus of queued tasks, in which case a
+ * range is split further as long as each half is still worth a fork, while
+ * a large surplus lets a range of up to twice the threshold run in place.
+ * Either way a leaf stays short, which also bounds how long a cancelled job
+ * keeps running.
+ */
+final class Granularity {
+
+    private static final long TARGET_NANOS = 100_000;
+
+    private static final long MIN_NANOS = 10_000;
+
+    private static final int SAMPLE_LIMIT = 64;
+
+    private static final int SURPLUS_LIMIT = 3;
+
+    private final boolean adaptive;
+
+    private final int parallelism;
+
+    private final long maximum;
+
+    private volatile long threshold;
+
+    private volatile double cost;
+
+    private Granularity(boolean adaptive, int parallelism, long maximum, long threshold) {
+        this.adaptive = adaptive;
+        this.parallelism = parallelism;
+        this.maximum = maximum;
+        this.threshold = threshold;
+    }
+
+    // Starts from the static split of 16 tasks per worker until a sample is
+    // recorded, and never goes coarser than 4 tasks per worker.
+    static Granularity adaptive(long units, int parallelism) {
+        return new Granularity(true, parallelism,
+                Math.max(1, units / (parallelism << 2)),
+                Math.max(1, units / (parallelism << 4)));
+    }
+
+    static Granularity fixed(long threshold) {
+        return new Granularity(false, 1, threshold, threshold);
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    // Number of elements from the end of [lo, hi) that the root task runs
+    // itself to measure their cost, at most one task's worth of weight.
+    int sampleSize(long[] offsets, int lo, int hi) {
+        int count = (int) Math.min(SAMPLE_LIMIT, Math.min(hi - lo, threshold));
+        if (offsets != null) {
+            while (count > 1 && offsets[hi] - offsets[hi - count] > threshold) {
+                count--;
+            }
+        }
+        return count;
+    }
+
+    boolean split(long units) {
+        if (units <= 1) {
+            return false;
+        }
+        if (!adaptive) {
+            return units > threshold;
+        }
+        if (units > threshold) {
+            return units > (threshold << 1) || ForkJoinTask.getSurplusQueuedTaskCount() <= SURPLUS_LIMIT;
+        }
+        return parallelism > 1
+                && units * cost >= (MIN_NANOS << 1)
+                && ForkJoinTask.getSurplusQueuedTaskCount() == 0;
+    }
+
+    // Finds the index that divides the weight of [lo, hi) most evenly,
+    // leaving at least one element on either side.
+    static int split(long[] offsets, int lo, int hi) {
+        long target = offsets[lo] + ((offsets[hi] - offsets[lo]) >> 1);
+        int low = lo + 1, high = hi - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low > lo + 1 && target - offsets[low - 1] < offsets[low] - target) {
+            low--;
+        }
+        return low;
+    }
+
+    // Readings are blended in with a weight of a quarter, races between leaves
+    // only lose a reading.
+    void record(long units, long nanos) {
+        if (!adaptive || units <= 0) {
+            return;
+        }
+        double sample = Math.max(1e-3, (double) nanos / units);
+        double current = cost;
+        current = (current == 0) ? sample : current + (sample - current) * 0.25;
+        cost = current;
+        threshold = Math.max(1, Math.min(maximum, (long) (TARGET_NANOS / current)));
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+public interface IntMapper<I, K> extends Mapper<I, K, Integer> {
+    
+    // Named apart from map so that a lambda emitter is never ambiguous.
+    public void mapInt(I input, IntEmitter<K> emitter);
+
+    @Override
+    public default void map(I input, Emitter<K, Integer> emitter) {
+        if (emitter instanceof IntEmitter) {
+            mapInt(input, (IntEmitter<K>) emitter);
+        } else {
+            mapInt(input, emitter::emit);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Gathers the statistics of one run. The phase boundaries are marked by the
+ * thread driving the job, the counters are updated by the workers. A
+ * disabled recorder ignores everything, so the job only pays for the
+ * checks.
+ *
+ * Every task passes through the recorder, which makes it the place where an
+ * asynchronous run notices that its future was completed early, cancelled
+ * as a rule, and stops at the next task or phase boundary.
+ */
+final class JobRecorder {
+
+    static final JobRecorder DISABLED = new JobRecorder(null, null);
+
+    // Entering an uncontended monitor takes tens of nanoseconds, so a longer
+    // wait means the worker was parked behind another one.
+    private static final long BLOCKED_NANOS = 10_000;
+
+    private final ForkJoinPool pool;
+
+    private final Future<?> job;
+
+    private final long steals;
+
+    private final long start;
+
+    private long mapped, merged, finished;
+
+    private final LongAdder tasks = new LongAdder();
+
+    private final LongAdder emitted = new LongAdder();
+
+    private final LongAdder keys = new LongAdder();
+
+    private final LongAccumulator largest = new LongAccumulator(Math::max, -1);
+
+    private final LongAdder blocked = new LongAdder();
+
+    // Statistics are only gathered with a pool, cancellation is only
+    // checked with a job.
+    JobRecorder(ForkJoinPool pool, Future<?> job) {
+        this.pool = pool;
+        this.job = job;
+        this.steals = pool == null ? 0 : pool.getStealCount();
+        this.start = System.nanoTime();
+    }
+
+    boolean isEnabled() {
+        return pool != null;
+    }
+
+    // Counts each map task through its acquire, without wrapping the
+    // emitters themselves, so that primitive emitters stay visible.
+    <K, V> MapPhase<K, V> wrap(MapPhase<K, V> phase) {
+        if (!isEnabled() && job == null) {
+            return phase;
+        }
+        return (fjp, emitters) -> {
+            phase.map(fjp, new Collector<K, V>() {
+                @Override
+                public Emitter<K, V> acquire() {
+                    checkCancelled();
+                    if (isEnabled()) {
+                        tasks.increment();
+                    }
+                    return emitters.acquire();
+                }
+
+                @Override
+                public void release(Emitter<K, V> emitter) {
+                    emitters.release(emitter);
+                }
+            });
+            mapped = System.nanoTime();
+        };
+    }
+
+    void checkCancelled() {
+        if (job != null && job.isDone()) {
+            throw new CancellationException("Job was cancelled");
+        }
+    }
+
+    void merged() {
+        checkCancelled();
+        if (isEnabled()) {
+            merged = System.nanoTime();
+        }
+    }
+
+    void task() {
+        checkCancelled();
+        if (isEnabled()) {
+            tasks.increment();
+        }
+    }
+
+    // Timed around entering a per-key lock of the shared collector: the
+    // start is taken before the lock, locked is called once inside it.
+    long locking() {
+        return isEnabled() ? System.nanoTime() : 0;
+    }
+
+    void locked(long start) {
+        if (isEnabled() && System.nanoTime() - start > BLOCKED_NANOS) {
+            blocked.increment();
+        }
+    }
+
+    void emitted() {
+        if (isEnabled()) {
+            emitted.increment();
+        }
+    }
+
+    void emitted(long count) {
+        if (isEnabled()) {
+            emitted.add(count);
+        }
+    }
+
+    void key(long values) {
+        if (isEnabled()) {
+            keys.increment();
+            emitted.add(values);
+            largest.accumulate(values);
+        }
+    }
+
+    void keys(long count) {
+        if (isEnabled()) {
+            keys.add(count);
+        }
+    }
+
+    JobStats finish() {
+        finished = System.nanoTime();
+        long mapEnd = mapped == 0 ? finished : mapped;
+        long mergeEnd = merged == 0 ? mapEnd : merged;
+        return new JobStats(
+                finished - start, mapEnd - start, mergeEnd - mapEnd, finished - mergeEnd,
+                tasks.sum(), pool.getStealCount() - steals,
+                emitted.sum(), keys.sum(), largest.get(),
+                blocked.sum());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+/*
+ * Statistics of one completed run. Counts that do not apply to the job,
+ * such as value-list sizes for a combining job, are reported as -1.
+ */
+public final class JobStats implements JobStatsMXBean {
+
+    static final JobStats EMPTY = new JobStats(0, 0, 0, 0, 0, 0, 0, 0, -1, 0);
+
+    private final long mapNanos;
+
+    private final long mergeNanos;
+
+    private final long reduceNanos;
+
+    private final long tasksExecuted;
+
+    private final long poolSteals;
+
+    private final long recordsEmitted;
+
+    private final long distinctKeys;
+
+    private final long largestValueList;
+
+    private final long blockedCount;
+
+    private final long totalNanos;
+
+    JobStats(
+            long totalNanos, long mapNanos, long mergeNanos, long reduceNanos,
+            long tasksExecuted, long poolSteals,
+            long recordsEmitted, long distinctKeys, long largestValueList,
+            long blockedCount) {
+        this.totalNanos = totalNanos;
+        this.mapNanos = mapNanos;
+        this.mergeNanos = mergeNanos;
+        this.reduceNanos = reduceNanos;
+        this.tasksExecuted = tasksExecuted;
+        this.poolSteals = poolSteals;
+        this.recordsEmitted = recordsEmitted;
+        this.distinctKeys = distinctKeys;
+        this.largestValueList = largestValueList;
+        this.blockedCount = blockedCount;
+    }
+
+    @Override
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    @Override
+    public long getMapNanos() {
+        return mapNanos;
+    }
+
+    // Time from the end of the map phase until the intermediates are ready
+    // to reduce, including merging worker buffers and spilling.
+    @Override
+    public long getMergeNanos() {
+        return mergeNanos;
+    }
+
+    @Override
+    public long getReduceNanos() {
+        return reduceNanos;
+    }
+
+    @Override
+    public long getTasksExecuted() {
+        return tasksExecuted;
+    }
+
+    // Steals counted by the whole pool while the job ran, so jobs sharing a
+    // runtime at the same time see each other's steals.
+    @Override
+    public long getPoolSteals() {
+        return poolSteals;
+    }
+
+    @Override
+    public long getRecordsEmitted() {
+        return recordsEmitted;
+    }
+
+    @Override
+    public long getDistinctKeys() {
+        return distinctKeys;
+    }
+
+    @Override
+    public long getLargestValueList() {
+        return largestValueList;
+    }
+
+    // Times a map worker waited to enter another worker's value list or
+    // holder in the shared collector. Other collectors never lock, so they
+    // always report zero.
+    @Override
+    public long getBlockedCount() {
+        return blockedCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "total %d ns, map %d ns, merge %d ns, reduce %d ns, "
+                + "tasks %d, pool steals %d, records %d, keys %d, largest list %d, blocked %d",
+                totalNanos, mapNanos, mergeNanos, reduceNanos,
+                tasksExecuted, poolSteals, recordsEmitted, distinctKeys, largestValueList,
+                blockedCount);
+    }
+}
@@ -15,197 +15,1267 @@
  */
 package uk.ac.man.cs.mapreduce;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 public class MapReduce<I, K, V> {
 
+    private static final int RESULT_THRESHOLD = 1 << 12;
+
+    // Roughly what it costs to wake the pool and run a job through its
+    // phases, below this a job is cheaper done in the calling thread.
+    private static final long SEQUENTIAL_NANOS = 200_000;
+
+    // Automatic jobs with at most this many inputs that go to the pool time
+    // their first input, to price the next run.
+    private static final int PROBE_INPUTS = 64;
+
     private final Mapper<I, K, V> mapper;
     
     private final Reducer<K, V> reducer;
     
+    private CollectorMode collectorMode = CollectorMode.SHARED;
+    
+    private ExecutorMode executorMode = ExecutorMode.AUTOMATIC;
+    
+    private int denseKeyCount;
+    
+    private ToIntFunction<? super K> denseKeyIndex;
+    
+    private ToLongFunction<? super I> inputWeight;
+    
+    private int streamBatchSize = 16;
+    
+    private int streamBatchesInFlight;
+    
+    private long spillBudget;
+    
+    private Codec<K> spillKeyCodec;
+    
+    private Codec<V> spillValueCodec;
+    
+    private File spillDirectory;
+    
+    private Codec<V> offHeapCodec;
+    
+    private int offHeapChunkSize;
+    
+    private boolean collectingStats;
+    
+    private volatile JobStats lastStats;
+    
+    // What a unit of input weight cost to map when last measured, NaN until
+    // a run has measured it.
+    private volatile double unitNanos = Double.NaN;
+    
     public MapReduce(Mapper<I, K, V> mapper, Reducer<K, V> reducer) {
         this.mapper = mapper;
         this.reducer = reducer;
     }
 
+    public CollectorMode getCollectorMode() {
+        return collectorMode;
+    }
+
+    public void setCollectorMode(CollectorMode collectorMode) {
+        this.collectorMode = collectorMode;
+    }
+
+    public ExecutorMode getExecutorMode() {
+        return executorMode;
+    }
+
+    // Every mode applies to the jobs over lists, run, runInto and their
+    // asynchronous forms. Jobs over streams and iterators, iterate and
+    // pipeline stages always map on the fork/join pool.
+    public void setExecutorMode(ExecutorMode executorMode) {
+        this.executorMode = executorMode;
+    }
+
+    public void setDenseKeys(int keyCount, ToIntFunction<? super K> keyIndex) {
+        if (keyIndex != null && keyCount <= 0) {
+            throw new IllegalArgumentException("keyCount must be positive");
+        }
+        this.denseKeyCount = keyCount;
+        this.denseKeyIndex = keyIndex;
+    }
+
+    public void clearDenseKeys() {
+        setDenseKeys(0, null);
+    }
+
+    public boolean hasDenseKeys() {
+        return denseKeyIndex != null;
+    }
+
+    // Inputs are then split into ranges of equal total weight rather than
+    // equal counts, and the heaviest are mapped first.
+    public void setInputWeight(ToLongFunction<? super I> weight) {
+        this.inputWeight = weight;
+    }
+
+    public void clearInputWeight() {
+        setInputWeight(null);
+    }
+
+    public boolean hasInputWeight() {
+        return inputWeight != null;
+    }
+
+    public int getStreamBatchSize() {
+        return streamBatchSize;
+    }
+
+    public void setStreamBatchSize(int streamBatchSize) {
+        this.streamBatchSize = streamBatchSize;
+    }
+
+    public int getStreamBatchesInFlight() {
+        return streamBatchesInFlight;
+    }
+
+    // Zero allows twice the pool's parallelism.
+    public void setStreamBatchesInFlight(int streamBatchesInFlight) {
+        this.streamBatchesInFlight = streamBatchesInFlight;
+    }
+
+    // Once the map workers together buffer more than recordBudget values,
+    // they write them to temporary run files that are merged at reduce time.
+    public void setSpill(long recordBudget, Codec<K> keyCodec, Codec<V> valueCodec) {
+        if (recordBudget <= 0) {
+            throw new IllegalArgumentException("recordBudget must be positive");
+        }
+        if (keyCodec == null || valueCodec == null) {
+            throw new IllegalArgumentException("codecs are required to spill");
+        }
+        this.spillBudget = recordBudget;
+        this.spillKeyCodec = keyCodec;
+        this.spillValueCodec = valueCodec;
+    }
+
+    public void clearSpill() {
+        this.spillBudget = 0;
+        this.spillKeyCodec = null;
+        this.spillValueCodec = null;
+    }
+
+    public boolean hasSpill() {
+        return spillBudget > 0;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    // Null uses the default temporary-file directory.
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    // Intermediate values are then kept serialised in chunks of direct memory
+    // rather than as objects on the heap, and reducers are given a read-only
+    // list that decodes them on access. Spilling takes precedence.
+    public void setOffHeap(Codec<V> valueCodec) {
+        setOffHeap(valueCodec, ArenaCollector.DEFAULT_CHUNK_SIZE);
+    }
+
+    public void setOffHeap(Codec<V> valueCodec, int chunkSize) {
+        if (valueCodec == null) {
+            throw new IllegalArgumentException("a codec is required off the heap");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.offHeapCodec = valueCodec;
+        this.offHeapChunkSize = chunkSize;
+    }
+
+    public void clearOffHeap() {
+        this.offHeapCodec = null;
+        this.offHeapChunkSize = 0;
+    }
+
+    public boolean hasOffHeap() {
+        return offHeapCodec != null;
+    }
+
+    public boolean isCollectingStats() {
+        return collectingStats;
+    }
+
+    public void setCollectingStats(boolean collectingStats) {
+        this.collectingStats = collectingStats;
+    }
+
+    // The statistics of the most recently completed run, or null when no
+    // run has completed with collection enabled.
+    public JobStats getLastStats() {
+        return lastStats;
+    }
+
+    // Publishes the statistics of the latest run on the platform MBean
+    // server under uk.ac.man.cs.mapreduce:type=JobStats,name=<name>.
+    public ObjectName registerStatsMXBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName(
+                "uk.ac.man.cs.mapreduce:type=JobStats,name=" + ObjectName.quote(name));
+        JobStatsMXBean view = new JobStatsMXBean() {
+            private JobStats stats() {
+                JobStats stats = lastStats;
+                return stats == null ? JobStats.EMPTY : stats;
+            }
+
+            @Override
+            public long getTotalNanos() {
+                return stats().getTotalNanos();
+            }
+
+            @Override
+            public long getMapNanos() {
+                return stats().getMapNanos();
+            }
+
+            @Override
+            public long getMergeNanos() {
+                return stats().getMergeNanos();
+            }
+
+            @Override
+            public long getReduceNanos() {
+                return stats().getReduceNanos();
+            }
+
+            @Override
+            public long getTasksExecuted() {
+                return stats().getTasksExecuted();
+            }
+
+            @Override
+            public long getPoolSteals() {
+                return stats().getPoolSteals();
+            }
+
+            @Override
+            public long getRecordsEmitted() {
+                return stats().getRecordsEmitted();
+            }
+
+            @Override
+            public long getDistinctKeys() {
+                return stats().getDistinctKeys();
+            }
+
+            @Override
+            public long getLargestValueList() {
+                return stats().getLargestValueList();
+            }
+
+            @Override
+            public long getBlockedCount() {
+                return stats().getBlockedCount();
+            }
+        };
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(view, JobStatsMXBean.class, true), objectName);
+        return objectName;
+    }
+
     public List<KeyValue<K, V>> run(List<I> inputs, int parallelism) {
-        if (reducer.isCombinable()) {
-            return runWithCombiner(inputs, parallelism);
-        } else {
-            return runWithReducer(inputs, parallelism);
+        try (MapReduceRuntime runtime = new MapReduceRuntime(parallelism)) {
+            return run(inputs, runtime);
         }
     }
 
+    public List<KeyValue<K, V>> run(List<I> inputs, MapReduceRuntime runtime) {
+        return execute(runtime, inputs, null, null);
+    }
+
+    // Named apart from run so that a two-argument lambda cannot be taken for
+    // either a sink or a comparator.
+    public void runInto(List<I> inputs, MapReduceRuntime runtime, Emitter<K, V> sink) {
+        execute(runtime, inputs, sink, null);
+    }
+
+    // The job is queued on the runtime's pool and the caller returns at once,
+    // so several jobs can be in flight together. Cancelling the future stops
+    // the job's outstanding map and reduce tasks at their next boundary.
+    public CompletableFuture<List<KeyValue<K, V>>> runAsync(List<I> inputs, MapReduceRuntime runtime) {
+        ForkJoinPool fjp = runtime.getPool();
+        CompletableFuture<List<KeyValue<K, V>>> future = new CompletableFuture<>();
+        submit(fjp, future, () -> execute(runtime, inputs, null, future));
+        return future;
+    }
+
+    public CompletableFuture<Void> runAsyncInto(List<I> inputs, MapReduceRuntime runtime, Emitter<K, V> sink) {
+        ForkJoinPool fjp = runtime.getPool();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        submit(fjp, future, () -> {
+            execute(runtime, inputs, sink, future);
+            return null;
+        });
+        return future;
+    }
+
+    private static <R> void submit(ForkJoinPool fjp, CompletableFuture<R> future, Supplier<R> job) {
+        fjp.execute(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(job.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+    }
+
+    // Runs rounds over the same inputs, starting from the initial state,
+    // until the step reports convergence or maxIterations is reached, and
+    // returns the number of rounds run. Before each round the state is
+    // published to the mappers through the broadcast, and each round's
+    // results go straight to the step's sink.
+    public <S> int iterate(
+            List<I> inputs, MapReduceRuntime runtime, Broadcast<S> broadcast,
+            S initial, Step<K, V, S> step, int maxIterations) {
+        ForkJoinPool fjp = runtime.getPool();
+        
+        // The input is split once, every round maps the same partitions.
+        int partitionCount = Math.max(1, Math.min(inputs.size(), fjp.getParallelism() << 4));
+        int[] bounds = new int[partitionCount + 1];
+        for (int i = 0; i <= partitionCount; i++) {
+            bounds[i] = (int) ((long) inputs.size() * i / partitionCount);
+        }
+        
+        MapPhase<K, V> phase = (pool, emitters) ->
+                pool.invoke(new PartitionRunner(inputs, bounds, emitters, 0, partitionCount));
+        
+        S state = initial;
+        
+        int iterations = 0;
+        
+        while (state != null && iterations < maxIterations) {
+            iterations++;
+            
+            broadcast.set(state);
+            
+            execute(fjp, phase, step.results(state));
+            
+            state = step.next(state);
+        }
+        
+        return iterations;
+    }
+
+    public List<KeyValue<K, V>> run(Stream<I> inputs, int parallelism) {
+        try (MapReduceRuntime runtime = new MapReduceRuntime(parallelism)) {
+            return run(inputs, runtime);
+        }
+    }
+
+    public List<KeyValue<K, V>> run(Stream<I> inputs, MapReduceRuntime runtime) {
+        return run(inputs.spliterator(), runtime);
+    }
+
+    public List<KeyValue<K, V>> run(Iterator<I> inputs, MapReduceRuntime runtime) {
+        return run(Spliterators.spliteratorUnknownSize(inputs, Spliterator.ORDERED), runtime);
+    }
+
+    public List<KeyValue<K, V>> run(Spliterator<I> inputs, MapReduceRuntime runtime) {
+        return execute(runtime.getPool(), (fjp, emitters) -> mapStream(fjp, inputs, emitters));
+    }
+
+    public List<KeyValue<K, V>> run(Stream<I> inputs, MapReduceRuntime runtime, Comparator<KeyValue<K, V>> comparator) {
+        return sort(runtime.getPool(), run(inputs, runtime), comparator);
+    }
+
     public List<KeyValue<K, V>> run(List<I> inputs, int parallelism, Comparator<KeyValue<K, V>> comparator) {
-        return run(inputs, parallelism);
+        try (MapReduceRuntime runtime = new MapReduceRuntime(parallelism)) {
+            return run(inputs, runtime, comparator);
+        }
+    }
+
+    public List<KeyValue<K, V>> run(List<I> inputs, MapReduceRuntime runtime, Comparator<KeyValue<K, V>> comparator) {
+        return sort(runtime.getPool(), run(inputs, runtime), comparator);
+    }
+
+    public List<KeyValue<K, V>> run(List<I> inputs, int parallelism, Comparator<KeyValue<K, V>> comparator, int limit) {
+        try (MapReduceRuntime runtime = new MapReduceRuntime(parallelism)) {
+            return run(inputs, runtime, comparator, limit);
+        }
+    }
+
+    public List<KeyValue<K, V>> run(List<I> inputs, MapReduceRuntime runtime, Comparator<KeyValue<K, V>> comparator, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        
+        KeyValue<K, V>[] results = run(inputs, runtime).toArray(new KeyValue[0]);
+        
+        return ParallelSorter.top(runtime.getPool(), results, comparator, limit);
+    }
+    
+    private List<KeyValue<K, V>> sort(ForkJoinPool fjp, List<KeyValue<K, V>> results, Comparator<KeyValue<K, V>> comparator) {
+        KeyValue<K, V>[] sorted = results.toArray(new KeyValue[0]);
+        
+        ParallelSorter.sort(fjp, sorted, comparator);
+        
+        return Arrays.asList(sorted);
+    }
+    
+    private List<KeyValue<K, V>> execute(ForkJoinPool fjp, MapPhase<K, V> phase) {
+        return execute(fjp, phase, null);
+    }
+    
+    Mapper<I, K, V> getMapper() {
+        return mapper;
+    }
+    
+    MapPhase<K, V> phase(List<I> inputs) {
+        return MapRunner.phase(mapper, inputs, inputWeight);
+    }
+    
+    // A runtime with map threads for blocking mappers keeps using them,
+    // unless the job is told to run sequentially.
+    private List<KeyValue<K, V>> execute(MapReduceRuntime runtime, List<I> inputs, Emitter<K, V> sink, Future<?> job) {
+        ForkJoinPool fjp = runtime.getPool();
+        
+        if (executorMode == ExecutorMode.SEQUENTIAL) {
+            if (hasCollectorSettings()) {
+                throw new IllegalStateException(
+                        "SEQUENTIAL ignores spilling, off-heap values, dense keys and PARTITIONED collection");
+            }
+            return runSequential(fjp, inputs, sink, job);
+        }
+        
+        if (runtime.getMapExecutor() != null) {
+            return execute(fjp, new BlockingMapPhase<>(
+                    mapper, inputs, runtime.getMapExecutor(), runtime.getMapConcurrency()), sink, job);
+        }
+        
+        switch (executorMode) {
+            case FIXED_THREADS:
+                return execute(fjp, MapRunner.fixed(mapper, inputs, inputWeight, runtime.getWorkerQueues()), sink, job);
+            case FORK_JOIN:
+                return execute(fjp, phase(inputs), sink, job);
+            default:
+                return runAutomatic(fjp, inputs, sink, job);
+        }
+    }
+    
+    // A job is priced from what its inputs cost to map last time, and only
+    // goes to the calling thread when that comes under the pool's overhead.
+    // Otherwise a small job times its first input, heaviest first, in the
+    // pool's collector before forking the rest.
+    private List<KeyValue<K, V>> runAutomatic(ForkJoinPool fjp, List<I> inputs, Emitter<K, V> sink, Future<?> job) {
+        double cost = unitNanos;
+        
+        if (!hasCollectorSettings() && !Double.isNaN(cost) && cost * units(inputs) < SEQUENTIAL_NANOS) {
+            return runSequential(fjp, inputs, sink, job);
+        }
+        
+        if (inputs.isEmpty() || inputs.size() > PROBE_INPUTS) {
+            return execute(fjp, phase(inputs), sink, job);
+        }
+        
+        int first = 0;
+        if (inputWeight != null) {
+            for (int i = 1; i < inputs.size(); i++) {
+                if (inputWeight.applyAsLong(inputs.get(i)) > inputWeight.applyAsLong(inputs.get(first))) {
+                    first = i;
+                }
+            }
+        }
+        
+        I probe = inputs.get(first);
+        List<I> rest = new ArrayList<>(inputs);
+        rest.remove(first);
+        
+        MapPhase<K, V> phase = phase(rest);
+        return execute(fjp, (pool, emitters) -> {
+            Emitter<K, V> emitter = emitters.acquire();
+            try {
+                long start = System.nanoTime();
+                mapper.map(probe, emitter);
+                unitNanos = (double) (System.nanoTime() - start) / units(probe);
+            } finally {
+                emitters.release(emitter);
+            }
+            phase.map(pool, emitters);
+        }, sink, job);
+    }
+    
+    // The sequential path groups into a plain map, none of these apply there.
+    private boolean hasCollectorSettings() {
+        return hasSpill() || hasOffHeap() || hasDenseKeys() || collectorMode != CollectorMode.SHARED;
+    }
+    
+    private long units(List<I> inputs) {
+        if (inputWeight == null) {
+            return inputs.size();
+        }
+        long total = 0;
+        for (I input : inputs) {
+            total += units(input);
+        }
+        return total;
+    }
+    
+    private long units(I input) {
+        return inputWeight == null ? 1 : Math.max(0, inputWeight.applyAsLong(input)) + 1;
+    }
+    
+    // Maps, groups and reduces in the calling thread, with no collectors or
+    // tasks. Combining reducers fold into a holder per key as usual.
+    private List<KeyValue<K, V>> runSequential(ForkJoinPool fjp, List<I> inputs, Emitter<K, V> sink, Future<?> job) {
+        JobRecorder stats = recorder(fjp, job);
+        
+        CombiningReducer<K, V, Holder> combiner = reducer instanceof CombiningReducer
+                ? (CombiningReducer<K, V, Holder>) reducer : null;
+        Map<K, Object> groups = new HashMap<>();
+        
+        Emitter<K, V> grouping = combiner != null
+                ? (key, value) -> {
+                    combiner.accumulate((Holder) groups.computeIfAbsent(key, k -> combiner.create()), value);
+                    stats.emitted();
+                }
+                : (key, value) -> ((List<V>) groups.computeIfAbsent(key, k -> new ArrayList<>())).add(value);
+        
+        stats.wrap((MapPhase<K, V>) (pool, emitters) -> {
+            Emitter<K, V> emitter = emitters.acquire();
+            long start = System.nanoTime();
+            for (I input : inputs) {
+                mapper.map(input, emitter);
+            }
+            if (!inputs.isEmpty()) {
+                unitNanos = (double) (System.nanoTime() - start) / units(inputs);
+            }
+            emitters.release(emitter);
+        }).map(fjp, () -> grouping);
+        
+        stats.merged();
+        stats.task();
+        
+        final List<KeyValue<K, V>> results = sink == null ? new ArrayList<>(groups.size()) : null;
+        Emitter<K, V> emitter = sink != null ? sink : (key, value) -> results.add(new KeyValue<>(key, value));
+        
+        for (Entry<K, Object> group : groups.entrySet()) {
+            if (combiner != null) {
+                emitter.emit(group.getKey(), combiner.result((Holder) group.getValue()));
+            } else {
+                List<V> values = (List<V>) group.getValue();
+                stats.key(values.size());
+                reducer.reduce(group.getKey(), values, emitter);
+            }
+        }
+        
+        if (combiner != null) {
+            stats.keys(groups.size());
+        }
+        
+        if (stats.isEnabled()) {
+            lastStats = stats.finish();
+        }
+        
+        return results;
+    }
+    
+    private JobRecorder recorder(ForkJoinPool fjp, Future<?> job) {
+        return collectingStats || job != null
+                ? new JobRecorder(collectingStats ? fjp : null, job) : JobRecorder.DISABLED;
+    }
+    
+    // With a sink the results are emitted into it as they are produced,
+    // possibly from several threads at once, and no list is returned.
+    List<KeyValue<K, V>> execute(ForkJoinPool fjp, MapPhase<K, V> phase, Emitter<K, V> sink) {
+        return execute(fjp, phase, sink, null);
+    }
+    
+    // An asynchronous run stops with a CancellationException once its job
+    // future is done.
+    private List<KeyValue<K, V>> execute(ForkJoinPool fjp, MapPhase<K, V> phase, Emitter<K, V> sink, Future<?> job) {
+        JobRecorder stats = recorder(fjp, job);
+        
+        List<KeyValue<K, V>> results;
+        
+        if (reducer instanceof CombiningReducer) {
+            results = runWithCombiner(fjp, stats.wrap(phase), (CombiningReducer<K, V, Holder>) reducer, sink, stats);
+        } else if (reducer.isCombinable()) {
+            results = runWithCombiner(fjp, stats.wrap(phase), getOptimisedCombiner(), sink, stats);
+        } else {
+            results = runWithReducer(fjp, stats.wrap(phase), sink, stats);
+        }
+        
+        if (stats.isEnabled()) {
+            lastStats = stats.finish();
+        }
+        
+        return results;
     }
     
-    private List<KeyValue<K, V>> runWithReducer(List<I> inputs, int parallelism) {
-        final ForkJoinPool fjp = new ForkJoinPool(parallelism);
+    private void mapStream(ForkJoinPool fjp, Spliterator<I> inputs, Collector<K, V> emitters) {
+        final int batchSize = Math.max(1, streamBatchSize);
+        
+        final Semaphore permits = new Semaphore(
+                streamBatchesInFlight > 0 ? streamBatchesInFlight : fjp.getParallelism() << 1);
+        
+        final AtomicBoolean failed = new AtomicBoolean();
+        
+        List<ForkJoinTask<?>> batches = new ArrayList<>();
         
+        boolean more = true;
+        
+        // The caller reads the next batch while the pool maps earlier ones,
+        // blocking once too many batches are waiting to be mapped.
+        while (more && !failed.get()) {
+            List<I> batch = new ArrayList<>(batchSize);
+            
+            while (more && batch.size() < batchSize) {
+                more = inputs.tryAdvance(batch::add);
+            }
+            
+            if (batch.isEmpty()) {
+                break;
+            }
+            
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while reading input");
+            }
+            
+            batches.add(fjp.submit(new BatchRunner(batch, emitters, permits, failed)));
+        }
+        
+        for (ForkJoinTask<?> batch : batches) {
+            batch.join();
+        }
+    }
+    
+    private List<KeyValue<K, V>> runWithReducer(ForkJoinPool fjp, MapPhase<K, V> phase, Emitter<K, V> sink, JobRecorder stats) {
+        if (hasSpill()) {
+            return runWithSpill(fjp, phase, sink, stats);
+        }
+        
+        if (hasOffHeap()) {
+            return runOffHeap(fjp, phase, sink, stats);
+        }
+        
+        Entry<K, List<V>>[] intermediates;
+        
+        // Primitive jobs always collect per worker so that values stay
+        // unboxed from the emitter through to the reducer.
+        if (collectorMode == CollectorMode.PARTITIONED || hasDenseKeys() || isPrimitive()) {
+            intermediates = mapLocal(fjp, phase);
+        } else {
+            intermediates = mapShared(fjp, phase, stats);
+        }
+        
+        stats.merged();
+        
+        return reduce(fjp, intermediates, sink, stats);
+    }
+    
+    private List<KeyValue<K, V>> reduce(ForkJoinPool fjp, Entry<K, List<V>>[] intermediates, Emitter<K, V> sink, JobRecorder stats) {
+        int parallelism = fjp.getParallelism();
+        
+        // Every key is weighted by the number of values it holds, plus one
+        // for the cost of the reduce call itself.
+        long totalWeight = intermediates.length;
+        for (Entry<K, List<V>> kv : intermediates) {
+            totalWeight += kv.getValue().size();
+            stats.key(kv.getValue().size());
+        }
+        
+        long reduceGranularity = Math.max(1, totalWeight / (parallelism << 4));
+        
+        // Groups heavier than a whole task are moved to the front, heaviest
+        // first, so that they are split off first and start early.
+        int heavy = 0;
+        for (int i = 0; i < intermediates.length; i++) {
+            if (intermediates[i].getValue().size() >= reduceGranularity) {
+                Entry<K, List<V>> kv = intermediates[heavy];
+                intermediates[heavy++] = intermediates[i];
+                intermediates[i] = kv;
+            }
+        }
+        Arrays.sort(intermediates, 0, heavy, (kv1, kv2) ->
+                Integer.compare(kv2.getValue().size(), kv1.getValue().size()));
+        
+        long[] offsets = new long[intermediates.length + 1];
+        for (int i = 0; i < intermediates.length; i++) {
+            offsets[i + 1] = offsets[i] + intermediates[i].getValue().size() + 1;
+        }
+
+        Granularity granularity = Granularity.adaptive(totalWeight, parallelism);
+
+        return fjp.invoke(new ReduceRunner(intermediates, offsets, sink, stats, granularity, 0, intermediates.length, true));
+    }
+    
+    // Spilling jobs collect boxed values, the primitive reducers unwrap them
+    // again per key, which is cheap next to the cost of the disk.
+    private List<KeyValue<K, V>> runWithSpill(ForkJoinPool fjp, MapPhase<K, V> phase, Emitter<K, V> sink, JobRecorder stats) {
+        SpillingCollector<K, V> collector = new SpillingCollector<>(
+                fjp.getParallelism(), spillBudget, spillKeyCodec, spillValueCodec, spillDirectory);
+        
+        try {
+            phase.map(fjp, collector);
+            
+            if (!collector.hasSpilled()) {
+                Entry<K, List<V>>[] intermediates = collector.merge(fjp);
+                
+                stats.merged();
+                
+                return reduce(fjp, intermediates, sink, stats);
+            }
+            
+            collector.flush(fjp);
+            
+            stats.merged();
+            
+            return fjp.invoke(new SpillRunner(collector, sink, stats, 0, collector.getPartitionCount()));
+        } finally {
+            collector.delete();
+        }
+    }
+    
+    // Like spilling, values are boxed on their way in and out of the arena.
+    private List<KeyValue<K, V>> runOffHeap(ForkJoinPool fjp, MapPhase<K, V> phase, Emitter<K, V> sink, JobRecorder stats) {
+        ArenaCollector<K, V> collector = new ArenaCollector<>(
+                fjp.getParallelism(), offHeapCodec, offHeapChunkSize);
+        
+        phase.map(fjp, collector);
+        
+        collector.seal();
+        
+        Entry<K, List<V>>[] intermediates = (Entry[]) collector.merge(fjp);
+        
+        stats.merged();
+        
+        return reduce(fjp, intermediates, sink, stats);
+    }
+    
+    private Entry<K, List<V>>[] mapLocal(ForkJoinPool fjp, MapPhase<K, V> phase) {
+        int parallelism = fjp.getParallelism();
+        
+        if (mapper instanceof IntMapper && reducer instanceof IntReducer) {
+            WorkerCollector<K, Integer, IntList> collector = newWorkerCollector(
+                    parallelism, IntList::new, IntList::add, IntList::append);
+            return map(fjp, phase, (Collector) new IntCollector<>(collector), collector);
+        } else if (mapper instanceof LongMapper && reducer instanceof LongReducer) {
+            WorkerCollector<K, Long, LongList> collector = newWorkerCollector(
+                    parallelism, LongList::new, LongList::add, LongList::append);
+            return map(fjp, phase, (Collector) new LongCollector<>(collector), collector);
+        } else if (mapper instanceof DoubleMapper && reducer instanceof DoubleReducer) {
+            WorkerCollector<K, Double, DoubleList> collector = newWorkerCollector(
+                    parallelism, DoubleList::new, DoubleList::add, DoubleList::append);
+            return map(fjp, phase, (Collector) new DoubleCollector<>(collector), collector);
+        } else {
+            WorkerCollector<K, V, List<V>> collector = newWorkerCollector(
+                    parallelism, ArrayList::new, List::add, List::addAll);
+            return map(fjp, phase, collector, collector);
+        }
+    }
+    
+    private boolean isPrimitive() {
+        return (mapper instanceof IntMapper && reducer instanceof IntReducer)
+                || (mapper instanceof LongMapper && reducer instanceof LongReducer)
+                || (mapper instanceof DoubleMapper && reducer instanceof DoubleReducer);
+    }
+    
+    private <T, B> WorkerCollector<K, T, B> newWorkerCollector(
+            int parallelism, Supplier<B> factory,
+            BiConsumer<B, T> accumulator, BiConsumer<B, B> combiner) {
+        if (hasDenseKeys()) {
+            return new DenseCollector<>(denseKeyCount, denseKeyIndex, factory, accumulator, combiner);
+        } else {
+            return new PartitionedCollector<>(parallelism, factory, accumulator, combiner);
+        }
+    }
+    
+    private <B> Entry<K, B>[] map(ForkJoinPool fjp, MapPhase<K, V> phase, Collector<K, V> emitters, WorkerCollector<K, ?, B> collector) {
+        phase.map(fjp, emitters);
+        
+        return collector.merge(fjp);
+    }
+    
+    private Entry<K, List<V>>[] mapShared(ForkJoinPool fjp, MapPhase<K, V> phase, JobRecorder stats) {
         final ConcurrentMap<K, List<V>> collector = new ConcurrentHashMap<>();
              
-        final Emitter<K, V> mapEmitter = (key, value) -> {
-            List<V> values = collector.get(key);
-
-            if (values == null) {
-                List<V> list = new ArrayList<>();
-                values = collector.putIfAbsent(key, list);
-                if (values == null) {
-                    values = list;
+        // A bulk emit is grouped by key first, so that each key is looked up
+        // and locked once however the mapper orders it.
+        final Emitter<K, V> mapEmitter = new Emitter<K, V>() {
+            @Override
+            public void emit(K key, V value) {
+                List<V> values = values(key);
+                
+                long start = stats.locking();
+                synchronized (values) {
+                    stats.locked(start);
+                    values.add(value);
+                }
+            }
+            
+            @Override
+            public void emitAll(K[] keys, V[] values) {
+                for (Entry<K, List<V>> group : group(keys, values).entrySet()) {
+                    List<V> list = values(group.getKey());
+                    
+                    long start = stats.locking();
+                    synchronized (list) {
+                        stats.locked(start);
+                        list.addAll(group.getValue());
+                    }
                 }
             }
             
-            synchronized (values) {
-                values.add(value);
+            private List<V> values(K key) {
+                List<V> values = collector.get(key);
+
+                if (values == null) {
+                    List<V> list = new ArrayList<>();
+                    values = collector.putIfAbsent(key, list);
+                    if (values == null) {
+                        values = list;
+                    }
+                }
+                
+                return values;
             }
         };
-        
-        int mapGranularity = Math.max(1, inputs.size() / (parallelism << 4));
 
-        fjp.invoke(new MapRunner(inputs, mapEmitter, mapGranularity, 0, inputs.size()));
+        phase.map(fjp, () -> mapEmitter);
 
-        Entry<K, List<V>>[] intermediates = (Entry<K, List<V>>[]) collector.entrySet().toArray(new Entry[0]);
+        return (Entry<K, List<V>>[]) collector.entrySet().toArray(new Entry[0]);
+    }
+    
+    private List<KeyValue<K, V>> runWithCombiner(ForkJoinPool fjp, MapPhase<K, V> phase, Combiner<V, Holder> combiner, Emitter<K, V> sink, JobRecorder stats) {
+        int parallelism = fjp.getParallelism();
         
-        int reduceGranularity = Math.max(1, intermediates.length / (parallelism << 4));
-
-        List<KeyValue<K, V>> results = (List<KeyValue<K, V>>) fjp.invoke(new ReduceRunner(intermediates, reduceGranularity, 0, intermediates.length));
+        Entry<K, Holder>[] intermediates;
         
-        return results;
+        // Holders produced by the optimiser cannot be merged, so they are
+        // always combined in place in the shared collector.
+        if ((collectorMode == CollectorMode.PARTITIONED || hasDenseKeys()) && combiner instanceof CombiningReducer) {
+            intermediates = combineLocal(fjp, phase, (CombiningReducer<K, V, Holder>) combiner, stats);
+        } else {
+            intermediates = combineShared(fjp, phase, combiner, stats);
+        }
+        
+        stats.merged();
+        stats.keys(intermediates.length);
+        
+        KeyValue<K, V>[] results = sink == null ? new KeyValue[intermediates.length] : null;
+        
+        if (intermediates.length <= RESULT_THRESHOLD) {
+            new ResultRunner(intermediates, combiner, results, sink, stats, RESULT_THRESHOLD, 0, intermediates.length).compute();
+        } else {
+            int resultGranularity = Math.max(RESULT_THRESHOLD >> 2, intermediates.length / (parallelism << 4));
+            fjp.invoke(new ResultRunner(intermediates, combiner, results, sink, stats, resultGranularity, 0, intermediates.length));
+        }
+        
+        return sink == null ? Arrays.asList(results) : null;
     }
     
-    private List<KeyValue<K, V>> runWithCombiner(List<I> inputs, int parallelism) {
-        final ForkJoinPool fjp = new ForkJoinPool(parallelism);
+    private Entry<K, Holder>[] combineLocal(ForkJoinPool fjp, MapPhase<K, V> phase, CombiningReducer<K, V, Holder> combiner, JobRecorder stats) {
+        BiConsumer<Holder, V> accumulator = combiner::accumulate;
+        
+        if (stats.isEnabled()) {
+            accumulator = (holder, value) -> {
+                stats.emitted();
+                combiner.accumulate(holder, value);
+            };
+        }
         
+        WorkerCollector<K, V, Holder> collector = newWorkerCollector(
+                fjp.getParallelism(), combiner::create, accumulator, combiner::merge);
+        
+        return map(fjp, phase, collector, collector);
+    }
+    
+    private Entry<K, Holder>[] combineShared(ForkJoinPool fjp, MapPhase<K, V> phase, Combiner<V, Holder> combiner, JobRecorder stats) {
         final ConcurrentMap<K, Holder> collector = new ConcurrentHashMap<>();
              
-        final Emitter<K, V> mapEmitter = (key, value) -> {
-            Holder intermediate = collector.get(key);
-
-            if (intermediate == null) {
-                Holder temp = reducer.initialise();
-                intermediate = collector.putIfAbsent(key, temp);
-                if (intermediate == null) {
-                    intermediate = temp;
+        // A bulk emit is grouped by key first, so that each key is looked up
+        // and locked once however the mapper orders it.
+        final Emitter<K, V> mapEmitter = new Emitter<K, V>() {
+            @Override
+            public void emit(K key, V value) {
+                Holder intermediate = holder(key);
+                
+                long start = stats.locking();
+                synchronized (intermediate) {
+                    stats.locked(start);
+                    combiner.accumulate(intermediate, value);
+                }
+                
+                stats.emitted();
+            }
+            
+            @Override
+            public void emitAll(K[] keys, V[] values) {
+                for (Entry<K, List<V>> group : group(keys, values).entrySet()) {
+                    Holder intermediate = holder(group.getKey());
+                    
+                    long start = stats.locking();
+                    synchronized (intermediate) {
+                        stats.locked(start);
+                        for (V value : group.getValue()) {
+                            combiner.accumulate(intermediate, value);
+                        }
+                    }
                 }
+                
+                stats.emitted(keys.length);
             }
             
-            synchronized (intermediate) {
-                reducer.combine(intermediate, value);
+            @Override
+            public void emitAll(Map<? extends K, ? extends V> values) {
+                for (Entry<? extends K, ? extends V> kv : values.entrySet()) {
+                    Holder intermediate = holder(kv.getKey());
+                    
+                    long start = stats.locking();
+                    synchronized (intermediate) {
+                        stats.locked(start);
+                        combiner.accumulate(intermediate, kv.getValue());
+                    }
+                }
+                
+                stats.emitted(values.size());
+            }
+            
+            private Holder holder(K key) {
+                Holder intermediate = collector.get(key);
+
+                if (intermediate == null) {
+                    Holder temp = combiner.create();
+                    intermediate = collector.putIfAbsent(key, temp);
+                    if (intermediate == null) {
+                        intermediate = temp;
+                    }
+                }
+                
+                return intermediate;
             }
         };
-        
-        int mapGranularity = Math.max(1, inputs.size() / (parallelism << 4));
 
-        fjp.invoke(new MapRunner(inputs, mapEmitter, mapGranularity, 0, inputs.size()));
+        phase.map(fjp, () -> mapEmitter);
         
-        List<KeyValue<K, V>> results = new ArrayList<>(collector.size());
-        
-        // Is it worth while parallelising this?
-        for (Entry<K, Holder> kv : collector.entrySet()) {
-            results.add(new KeyValue<>(kv.getKey(), reducer.getResult(kv.getValue())));
+        return (Entry<K, Holder>[]) collector.entrySet().toArray(new Entry[0]);
+    }
+    
+    private static <K, V> Map<K, List<V>> group(K[] keys, V[] values) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("keys and values differ in length");
         }
-        
-        return results;
+        Map<K, List<V>> groups = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            groups.computeIfAbsent(keys[i], k -> new ArrayList<>()).add(values[i]);
+        }
+        return groups;
     }
+    
+    private Combiner<V, Holder> getOptimisedCombiner() {
+        return new Combiner<V, Holder>() {
+            @Override
+            public Holder create() {
+                return reducer.initialise();
+            }
 
-    private class MapRunner extends RecursiveAction {
+            @Override
+            public void accumulate(Holder holder, V value) {
+                reducer.combine(holder, value);
+            }
 
-        private final int granularity;
+            @Override
+            public V result(Holder holder) {
+                return reducer.getResult(holder);
+            }
+        };
+    }
+
+    private class BatchRunner extends RecursiveAction {
+
+        private final List<I> batch;
+
+        private final Collector<K, V> collector;
+
+        private final Semaphore permits;
+
+        private final AtomicBoolean failed;
+
+        private BatchRunner(
+                List<I> batch, Collector<K, V> collector,
+                Semaphore permits, AtomicBoolean failed) {
+            this.batch = batch;
+            this.collector = collector;
+            this.permits = permits;
+            this.failed = failed;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                new MapRunner<>(mapper, batch, collector, Granularity.fixed(batch.size()), 0, batch.size()).compute();
+            } catch (RuntimeException | Error e) {
+                failed.set(true);
+                throw e;
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    private class PartitionRunner extends RecursiveAction {
 
         private final List<I> input;
 
-        private final Emitter<K, V> emitter;
+        private final int[] bounds;
+
+        private final Collector<K, V> collector;
 
         private final int lo, hi;
 
-        private MapRunner(
-                List<I> input, Emitter<K, V> emitter, 
-                int granularity, int lo, int hi) {
+        private PartitionRunner(
+                List<I> input, int[] bounds, Collector<K, V> collector,
+                int lo, int hi) {
             this.input = input;
-            this.emitter = emitter;
+            this.bounds = bounds;
+            this.collector = collector;
             this.lo = lo;
             this.hi = hi;
-            this.granularity = granularity;
-        }        
+        }
 
         @Override
         protected void compute() {
-            int inputCount = hi - lo;
-
-            if (inputCount > granularity) {
-                int mi = lo + (inputCount >> 1);
+            if (hi - lo > 1) {
+                int mi = lo + ((hi - lo) >> 1);
                 invokeAll(
-                        new MapRunner(input, emitter, granularity, lo, mi),
-                        new MapRunner(input, emitter, granularity, mi, hi));
+                        new PartitionRunner(input, bounds, collector, lo, mi),
+                        new PartitionRunner(input, bounds, collector, mi, hi));
             } else {
-                List<I> sublist = input.subList(lo, hi);
-                for (I i : sublist) {
-                    mapper.map(i, emitter);
+                int size = bounds[hi] - bounds[lo];
+                new MapRunner<>(mapper, input, collector, Granularity.fixed(size), bounds[lo], bounds[hi]).compute();
+            }
+        }
+    }
+
+    private class SpillRunner extends RecursiveTask<List<KeyValue<K, V>>> {
+
+        private final SpillingCollector<K, V> collector;
+
+        private final Emitter<K, V> sink;
+
+        private final JobRecorder stats;
+
+        private final int lo, hi;
+
+        private SpillRunner(SpillingCollector<K, V> collector, Emitter<K, V> sink, JobRecorder stats, int lo, int hi) {
+            this.collector = collector;
+            this.sink = sink;
+            this.stats = stats;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected List<KeyValue<K, V>> compute() {
+            if (hi - lo > 1) {
+                int mi = lo + ((hi - lo) >> 1);
+                SpillRunner runner1 = new SpillRunner(collector, sink, stats, lo, mi);
+                runner1.fork();
+                List<KeyValue<K, V>> results = new SpillRunner(collector, sink, stats, mi, hi).compute();
+                List<KeyValue<K, V>> results1 = runner1.join();
+                if (results != null) {
+                    results.addAll(results1);
                 }
+                return results;
             }
+
+            final List<KeyValue<K, V>> results = sink == null ? new ArrayList<>() : null;
+
+            Emitter<K, V> emitter = sink != null ? sink : (key, value) -> results.add(new KeyValue<>(key, value));
+
+            stats.task();
+
+            collector.merge(lo, (key, values) -> {
+                stats.key(values.size());
+                reducer.reduce(key, values, emitter);
+            });
+
+            return results;
         }
     }
 
     private class ReduceRunner extends RecursiveTask<List<KeyValue<K, V>>> {
 
-        private final int granularity;
+        private final Granularity granularity;
+
+        private final Entry<K, List<V>>[] intermediates;
 
-        private Entry<K, List<V>>[] intermediates;
+        private final long[] offsets;
 
-        private int lo, hi;
+        private final Emitter<K, V> sink;
+
+        private final JobRecorder stats;
+
+        private final int lo, hi;
+
+        private final boolean sample;
 
         public ReduceRunner(
-                Entry<K, List<V>>[] intermediates,
-                int granularity, int lo, int hi) {
+                Entry<K, List<V>>[] intermediates, long[] offsets,
+                Emitter<K, V> sink, JobRecorder stats,
+                Granularity granularity, int lo, int hi, boolean sample) {
             this.intermediates = intermediates;
+            this.offsets = offsets;
+            this.sink = sink;
+            this.stats = stats;
             this.granularity = granularity;
             this.lo = lo;
             this.hi = hi;
+            this.sample = sample;
         }
 
         @Override
         public List<KeyValue<K, V>> compute() {
-            int inputCount = hi - lo;
+            int hi = this.hi;
             
             final List<KeyValue<K, V>> results
-                    = new ArrayList<>(inputCount);
+                    = sink == null ? new ArrayList<>(hi - lo) : null;
             
-            if (inputCount > granularity) {
-                int mi = lo + (inputCount >> 1);
+            // The lightest keys are at the tail, the root reduces a few of
+            // them itself to take the first measure of the cost of a value.
+            if (sample) {
+                int sampled = granularity.sampleSize(offsets, lo, hi);
+                hi -= sampled;
+                reduce(hi, hi + sampled, results);
+            }
+            
+            if (hi - lo > 1 && granularity.split(offsets[hi] - offsets[lo])) {
+                int mi = Granularity.split(offsets, lo, hi);
                 ReduceRunner runner1 =
-                        new ReduceRunner(intermediates, granularity, lo, mi);
+                        new ReduceRunner(intermediates, offsets, sink, stats, granularity, lo, mi, false);
                 runner1.fork();
                 ReduceRunner runner2 =
-                        new ReduceRunner(intermediates, granularity, mi, hi);
-                results.addAll(runner2.compute());
-                results.addAll(runner1.join());
+                        new ReduceRunner(intermediates, offsets, sink, stats, granularity, mi, hi, false);
+                List<KeyValue<K, V>> results2 = runner2.compute();
+                List<KeyValue<K, V>> results1 = runner1.join();
+                if (results != null) {
+                    results.addAll(results2);
+                    results.addAll(results1);
+                }
             } else {
-                Emitter<K, V> emitter = new Emitter<K, V>() {
-                    @Override
-                    public void emit(K key, V value) {
-                        results.add(new KeyValue<>(key, value));
-                    }
-                };
+                reduce(lo, hi, results);
+            }
 
-                for (int i = lo; i < hi; i++) {
-                    reducer.reduce(
-                            intermediates[i].getKey(),
-                            intermediates[i].getValue(),
-                            emitter);
+            return results;
+        }
+
+        private void reduce(int from, int to, List<KeyValue<K, V>> results) {
+            stats.task();
+
+            long start = System.nanoTime();
+
+            Emitter<K, V> emitter = sink != null ? sink : new Emitter<K, V>() {
+                @Override
+                public void emit(K key, V value) {
+                    results.add(new KeyValue<>(key, value));
                 }
+            };
+
+            for (int i = from; i < to; i++) {
+                reducer.reduce(
+                        intermediates[i].getKey(),
+                        intermediates[i].getValue(),
+                        emitter);
             }
 
-            return results;
+            granularity.record(offsets[to] - offsets[from], System.nanoTime() - start);
         }
+
     }
-}
 
+    private class ResultRunner extends RecursiveAction {
+
+        private final int granularity;
+
+        private final Entry<K, Holder>[] intermediates;
+
+        private final Combiner<V, Holder> combiner;
+
+        private final KeyValue<K, V>[] results;
+
+        private final Emitter<K, V> sink;
+
+        private final JobRecorder stats;
+
+        private final int lo, hi;
+
+        private ResultRunner(
+                Entry<K, Holder>[] intermediates, Combiner<V, Holder> combiner,
+                KeyValue<K, V>[] results, Emitter<K, V> sink, JobRecorder stats,
+                int granularity, int lo, int hi) {
+            this.intermediates = intermediates;
+            this.combiner = combiner;
+            this.results = results;
+            this.sink = sink;
+            this.stats = stats;
+            this.granularity = granularity;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            int inputCount = hi - lo;
+
+            if (inputCount > granularity) {
+                int mi = lo + (inputCount >> 1);
+                invokeAll(
+                        new ResultRunner(intermediates, combiner, results, sink, stats, granularity, lo, mi),
+                        new ResultRunner(intermediates, combiner, results, sink, stats, granularity, mi, hi));
+            } else if (sink != null) {
+                stats.task();
+                for (int i = lo; i < hi; i++) {
+                    Entry<K, Holder> kv = intermediates[i];
+                    sink.emit(kv.getKey(), combiner.result(kv.getValue()));
+                }
+            } else {
+                stats.task();
+                for (int i = lo; i < hi; i++) {
+                    Entry<K, Holder> kv = intermediates[i];
+                    results[i] = new KeyValue<>(kv.getKey(), combiner.result(kv.getValue()));
+                }
+            }
+        }
+    }
+}
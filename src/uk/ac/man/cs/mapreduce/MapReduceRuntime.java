@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+public class MapReduceRuntime implements AutoCloseable {
+
+    private final ForkJoinPool pool;
+
+    private final ExecutorService mapExecutor;
+
+    private final int mapConcurrency;
+
+    private WorkerQueues workerQueues;
+
+    public MapReduceRuntime(int parallelism) {
+        this(parallelism, 0);
+    }
+
+    // With a positive mapConcurrency, jobs over lists map on threads of their
+    // own, virtual threads on Java 21 and later, so that mappers may block.
+    // At most mapConcurrency map tasks run at once, whatever the parallelism
+    // of the pool that runs the other phases.
+    public MapReduceRuntime(int parallelism, int mapConcurrency) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.mapConcurrency = Math.max(0, mapConcurrency);
+        this.mapExecutor = mapConcurrency > 0 ? VirtualThreads.newExecutor(mapConcurrency) : null;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    public int getMapConcurrency() {
+        return mapConcurrency;
+    }
+
+    public boolean isMappingOnVirtualThreads() {
+        return mapExecutor != null && VirtualThreads.isSupported();
+    }
+
+    public boolean isShutdown() {
+        return pool.isShutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (mapExecutor != null && !mapExecutor.awaitTermination(timeout, unit)) {
+            return false;
+        }
+        WorkerQueues queues;
+        synchronized (this) {
+            queues = workerQueues;
+        }
+        if (queues != null && !queues.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        return pool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    ForkJoinPool getPool() {
+        return pool;
+    }
+
+    ExecutorService getMapExecutor() {
+        return mapExecutor;
+    }
+
+    // Started on first use, with as many threads as the pool's parallelism
+    synchronized WorkerQueues getWorkerQueues() {
+        if (workerQueues == null) {
+            workerQueues = new WorkerQueues(pool.getParallelism());
+        }
+        return workerQueues;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (workerQueues != null) {
+                workerQueues.close();
+            }
+        }
+        if (mapExecutor != null) {
+            mapExecutor.shutdown();
+        }
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ToLongFunction;
+
+class MapRunner<I, K, V> extends RecursiveAction {
+
+    private final Mapper<I, K, V> mapper;
+
+    private final Granularity granularity;
+
+    private final List<I> input;
+
+    private final Collector<K, V> collector;
+
+    // Cumulative weights of the inputs, or null when they all count as one
+    private final long[] offsets;
+
+    private final int lo, hi;
+
+    private final boolean sample;
+
+    MapRunner(
+            Mapper<I, K, V> mapper, List<I> input, Collector<K, V> collector, 
+            Granularity granularity, int lo, int hi) {
+        this(mapper, input, collector, granularity, null, lo, hi, false);
+    }
+
+    private MapRunner(
+            Mapper<I, K, V> mapper, List<I> input, Collector<K, V> collector, 
+            Granularity granularity, long[] offsets, int lo, int hi, boolean sample) {
+        this.mapper = mapper;
+        this.input = input;
+        this.collector = collector;
+        this.offsets = offsets;
+        this.lo = lo;
+        this.hi = hi;
+        this.granularity = granularity;
+        this.sample = sample;
+    }        
+
+    @Override
+    protected void compute() {
+        int hi = this.hi;
+
+        // The root maps the tail of its range itself before splitting, which
+        // gives the first measure of the cost of a record.
+        if (sample) {
+            int sampled = granularity.sampleSize(offsets, lo, hi);
+            hi -= sampled;
+            map(hi, hi + sampled);
+        }
+
+        if (hi - lo > 1 && granularity.split(units(lo, hi))) {
+            int mi = (offsets == null) ? lo + ((hi - lo) >> 1) : Granularity.split(offsets, lo, hi);
+            invokeAll(
+                    new MapRunner<>(mapper, input, collector, granularity, offsets, lo, mi, false),
+                    new MapRunner<>(mapper, input, collector, granularity, offsets, mi, hi, false));
+        } else {
+            map(lo, hi);
+        }
+    }
+
+    private long units(int from, int to) {
+        return (offsets == null) ? to - from : offsets[to] - offsets[from];
+    }
+
+    private void map(int from, int to) {
+        long start = granularity.isAdaptive() ? System.nanoTime() : 0;
+
+        Emitter<K, V> emitter = collector.acquire();
+        try {
+            List<I> sublist = input.subList(from, to);
+            for (I i : sublist) {
+                mapper.map(i, emitter);
+            }
+        } finally {
+            collector.release(emitter);
+        }
+
+        if (granularity.isAdaptive()) {
+            granularity.record(units(from, to), System.nanoTime() - start);
+        }
+    }
+
+    static <I, K, V> MapPhase<K, V> phase(Mapper<I, K, V> mapper, List<I> inputs) {
+        return phase(mapper, inputs, null);
+    }
+
+    static <I, K, V> MapPhase<K, V> phase(Mapper<I, K, V> mapper, List<I> inputs, ToLongFunction<? super I> weight) {
+        return (fjp, emitters) -> {
+            if (weight == null) {
+                Granularity granularity = Granularity.adaptive(inputs.size(), fjp.getParallelism());
+
+                fjp.invoke(new MapRunner<>(mapper, inputs, emitters, granularity, null, 0, inputs.size(), true));
+                return;
+            }
+
+            List<I> ordered = new ArrayList<>(inputs.size());
+            long[] offsets = order(inputs, weight, ordered);
+
+            Granularity granularity = Granularity.adaptive(offsets[inputs.size()], fjp.getParallelism());
+
+            fjp.invoke(new MapRunner<>(mapper, ordered, emitters, granularity, offsets, 0, inputs.size(), true));
+        };
+    }
+
+    // Cuts the input into four ranges per thread, of equal weight when there
+    // is one, and runs each range whole on the worker it is dealt to.
+    static <I, K, V> MapPhase<K, V> fixed(
+            Mapper<I, K, V> mapper, List<I> inputs, ToLongFunction<? super I> weight, WorkerQueues workers) {
+        return (fjp, emitters) -> {
+            int size = inputs.size();
+            List<I> ordered = inputs;
+            long[] offsets = null;
+            if (weight != null) {
+                ordered = new ArrayList<>(size);
+                offsets = order(inputs, weight, ordered);
+            }
+
+            int count = Math.max(1, Math.min(size, workers.size() << 2));
+            List<Runnable> tasks = new ArrayList<>(count);
+            for (int t = 0, lo = 0; t < count; t++) {
+                int hi = lo;
+                if (offsets == null) {
+                    hi = (int) ((long) size * (t + 1) / count);
+                } else {
+                    long target = offsets[size] * (t + 1) / count;
+                    while (hi < size && offsets[hi] < target) {
+                        hi++;
+                    }
+                }
+                MapRunner<I, K, V> range = new MapRunner<>(
+                        mapper, ordered, emitters, Granularity.fixed(hi - lo), lo, hi);
+                tasks.add(range::compute);
+                lo = hi;
+            }
+
+            workers.invokeAll(tasks);
+        };
+    }
+
+    // Each weight is packed above its index, so one primitive sort puts the
+    // inputs in order of weight. They are laid out heaviest first, and the
+    // cumulative weights are returned with every input counting one more
+    // than its weight.
+    private static <I> long[] order(List<I> inputs, ToLongFunction<? super I> weight, List<I> ordered) {
+        @SuppressWarnings("unchecked")
+        I[] array = (I[]) inputs.toArray();
+        long[] packed = new long[array.length];
+        for (int i = 0; i < array.length; i++) {
+            long w = Math.min(Math.max(0, weight.applyAsLong(array[i])), Integer.MAX_VALUE);
+            packed[i] = (w << 32) | i;
+        }
+        Arrays.sort(packed);
+
+        long[] offsets = new long[array.length + 1];
+        for (int i = 0; i < array.length; i++) {
+            long p = packed[array.length - 1 - i];
+            ordered.add(array[(int) p]);
+            offsets[i + 1] = offsets[i] + (p >>> 32) + 1;
+        }
+        return offsets;
+    }
+}
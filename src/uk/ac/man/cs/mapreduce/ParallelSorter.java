@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+final class ParallelSorter {
+
+    private static final int MIN_GRANULARITY = 1 << 13;
+
+    private ParallelSorter() {
+    }
+
+    static int granularity(int size, int parallelism) {
+        return Math.max(MIN_GRANULARITY, size / (parallelism << 2));
+    }
+
+    static <T> void sort(ForkJoinPool fjp, T[] items, Comparator<? super T> comparator) {
+        int granularity = granularity(items.length, fjp.getParallelism());
+
+        if (items.length <= granularity) {
+            Arrays.sort(items, comparator);
+        } else {
+            T[] buffer = Arrays.copyOf(items, items.length);
+            fjp.invoke(new SortRunner<>(items, buffer, comparator, granularity, 0, items.length));
+        }
+    }
+
+    static <T> List<T> top(ForkJoinPool fjp, T[] items, Comparator<? super T> comparator, int limit) {
+        int granularity = Math.max(limit, granularity(items.length, fjp.getParallelism()));
+
+        return fjp.invoke(new TopRunner<>(items, comparator, limit, granularity, 0, items.length));
+    }
+
+    // Sorts items[lo, hi) in place, using the same range of buffer as scratch.
+    private static class SortRunner<T> extends RecursiveAction {
+
+        private final T[] items, buffer;
+
+        private final Comparator<? super T> comparator;
+
+        private final int granularity;
+
+        private final int lo, hi;
+
+        private SortRunner(
+                T[] items, T[] buffer, Comparator<? super T> comparator,
+                int granularity, int lo, int hi) {
+            this.items = items;
+            this.buffer = buffer;
+            this.comparator = comparator;
+            this.granularity = granularity;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > granularity) {
+                int mi = lo + ((hi - lo) >> 1);
+                invokeAll(
+                        new SortRunner<>(items, buffer, comparator, granularity, lo, mi),
+                        new SortRunner<>(items, buffer, comparator, granularity, mi, hi));
+                System.arraycopy(items, lo, buffer, lo, hi - lo);
+                new MergeRunner<>(buffer, items, comparator, granularity, lo, mi, mi, hi, lo).compute();
+            } else {
+                Arrays.sort(items, lo, hi, comparator);
+            }
+        }
+    }
+
+    // Merges the sorted runs source[lo1, hi1) and source[lo2, hi2) into
+    // target starting at offset, splitting the larger run about its median.
+    private static class MergeRunner<T> extends RecursiveAction {
+
+        private final T[] source, target;
+
+        private final Comparator<? super T> comparator;
+
+        private final int granularity;
+
+        private final int lo1, hi1, lo2, hi2, offset;
+
+        private MergeRunner(
+                T[] source, T[] target, Comparator<? super T> comparator,
+                int granularity, int lo1, int hi1, int lo2, int hi2, int offset) {
+            this.source = source;
+            this.target = target;
+            this.comparator = comparator;
+            this.granularity = granularity;
+            this.lo1 = lo1;
+            this.hi1 = hi1;
+            this.lo2 = lo2;
+            this.hi2 = hi2;
+            this.offset = offset;
+        }
+
+        @Override
+        protected void compute() {
+            int length1 = hi1 - lo1;
+            int length2 = hi2 - lo2;
+
+            if (length1 + length2 <= granularity) {
+                merge();
+            } else if (length1 >= length2) {
+                int mi1 = lo1 + (length1 >> 1);
+                int mi2 = lowerBound(source[mi1], lo2, hi2);
+                int split = offset + (mi1 - lo1) + (mi2 - lo2);
+                invokeAll(
+                        new MergeRunner<>(source, target, comparator, granularity, lo1, mi1, lo2, mi2, offset),
+                        new MergeRunner<>(source, target, comparator, granularity, mi1, hi1, mi2, hi2, split));
+            } else {
+                int mi2 = lo2 + (length2 >> 1);
+                int mi1 = upperBound(source[mi2], lo1, hi1);
+                int split = offset + (mi1 - lo1) + (mi2 - lo2);
+                invokeAll(
+                        new MergeRunner<>(source, target, comparator, granularity, lo1, mi1, lo2, mi2, offset),
+                        new MergeRunner<>(source, target, comparator, granularity, mi1, hi1, mi2, hi2, split));
+            }
+        }
+
+        // First index in [lo, hi) whose element is not less than key.
+        private int lowerBound(T key, int lo, int hi) {
+            while (lo < hi) {
+                int mi = (lo + hi) >>> 1;
+                if (comparator.compare(source[mi], key) < 0) {
+                    lo = mi + 1;
+                } else {
+                    hi = mi;
+                }
+            }
+            return lo;
+        }
+
+        // First index in [lo, hi) whose element is greater than key.
+        private int upperBound(T key, int lo, int hi) {
+            while (lo < hi) {
+                int mi = (lo + hi) >>> 1;
+                if (comparator.compare(source[mi], key) <= 0) {
+                    lo = mi + 1;
+                } else {
+                    hi = mi;
+                }
+            }
+            return lo;
+        }
+
+        private void merge() {
+            int i = lo1, j = lo2, k = offset;
+
+            while (i < hi1 && j < hi2) {
+                if (comparator.compare(source[j], source[i]) < 0) {
+                    target[k++] = source[j++];
+                } else {
+                    target[k++] = source[i++];
+                }
+            }
+            while (i < hi1) {
+                target[k++] = source[i++];
+            }
+            while (j < hi2) {
+                target[k++] = source[j++];
+            }
+        }
+    }
+
+    private static class TopRunner<T> extends RecursiveTask<List<T>> {
+
+        private final T[] items;
+
+        private final Comparator<? super T> comparator;
+
+        private final int limit, granularity;
+
+        private final int lo, hi;
+
+        private TopRunner(
+                T[] items, Comparator<? super T> comparator,
+                int limit, int granularity, int lo, int hi) {
+            this.items = items;
+            this.comparator = comparator;
+            this.limit = limit;
+            this.granularity = granularity;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected List<T> compute() {
+            if (hi - lo > granularity) {
+                int mi = lo + ((hi - lo) >> 1);
+                TopRunner<T> runner1 = new TopRunner<>(items, comparator, limit, granularity, lo, mi);
+                runner1.fork();
+                TopRunner<T> runner2 = new TopRunner<>(items, comparator, limit, granularity, mi, hi);
+                List<T> results2 = runner2.compute();
+                return merge(runner1.join(), results2);
+            } else {
+                return select();
+            }
+        }
+
+        // Keeps the best limit items of the range in a heap whose head is
+        // the worst of those retained.
+        private List<T> select() {
+            PriorityQueue<T> heap = new PriorityQueue<>(Math.min(limit, hi - lo) + 1, Collections.reverseOrder(comparator));
+
+            for (int i = lo; i < hi; i++) {
+                if (heap.size() < limit) {
+                    heap.add(items[i]);
+                } else if (comparator.compare(items[i], heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(items[i]);
+                }
+            }
+
+            List<T> results = new ArrayList<>(heap);
+            results.sort(comparator);
+            return results;
+        }
+
+        private List<T> merge(List<T> results1, List<T> results2) {
+            int size = Math.min(limit, results1.size() + results2.size());
+            List<T> results = new ArrayList<>(size);
+            int i = 0, j = 0;
+
+            while (results.size() < size) {
+                if (j == results2.size()
+                        || (i < results1.size() && comparator.compare(results2.get(j), results1.get(i)) >= 0)) {
+                    results.add(results1.get(i++));
+                } else {
+                    results.add(results2.get(j++));
+                }
+            }
+
+            return results;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+class PartitionedCollector<K, V, B> extends WorkerCollector<K, V, B> {
+
+    private final int shift;
+
+    PartitionedCollector(
+            int parallelism, Supplier<B> factory,
+            BiConsumer<B, V> accumulator, BiConsumer<B, B> combiner) {
+        super(factory, accumulator, combiner);
+        int partitions = Math.max(2, Integer.highestOneBit(Math.max(1, parallelism) << 3));
+        this.shift = 32 - Integer.numberOfTrailingZeros(partitions);
+    }
+
+    int getPartitionCount() {
+        return 1 << (32 - shift);
+    }
+
+    // Partitions are chosen from the high bits of the hash so that the low
+    // bits used by each partition's HashMap remain well distributed.
+    int partition(K key) {
+        return (key.hashCode() * 0x9E3779B9) >>> shift;
+    }
+
+    @Override
+    Buffer newBuffer() {
+        return new PartitionBuffer();
+    }
+
+    @Override
+    Entry<K, B>[] merge(ForkJoinPool fjp) {
+        Buffer[] workers = getBuffers();
+        
+        Map<K, B>[] partitions = new Map[getPartitionCount()];
+        
+        fjp.invoke(new PartitionMerger(workers, partitions, 0, partitions.length));
+        
+        int size = 0;
+        for (Map<K, B> partition : partitions) {
+            size += partition.size();
+        }
+        
+        Entry<K, B>[] intermediates = new Entry[size];
+        
+        int offset = 0;
+        for (Map<K, B> partition : partitions) {
+            for (Entry<K, B> kv : partition.entrySet()) {
+                intermediates[offset++] = kv;
+            }
+        }
+        
+        return intermediates;
+    }
+
+    class PartitionBuffer extends Buffer {
+
+        final Map<K, B>[] partitions = new Map[getPartitionCount()];
+
+        PartitionBuffer() {
+            for (int i = 0; i < partitions.length; i++) {
+                partitions[i] = new HashMap<>();
+            }
+        }
+
+        @Override
+        B values(K key) {
+            Map<K, B> partition = partitions[partition(key)];
+            B values = partition.get(key);
+            if (values == null) {
+                values = factory.get();
+                partition.put(key, values);
+            }
+            return values;
+        }
+    }
+
+    private class PartitionMerger extends RecursiveAction {
+
+        private final Buffer[] workers;
+
+        private final Map<K, B>[] partitions;
+
+        private final int lo, hi;
+
+        private PartitionMerger(
+                Buffer[] workers, Map<K, B>[] partitions,
+                int lo, int hi) {
+            this.workers = workers;
+            this.partitions = partitions;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mi = lo + ((hi - lo) >> 1);
+                invokeAll(
+                        new PartitionMerger(workers, partitions, lo, mi),
+                        new PartitionMerger(workers, partitions, mi, hi));
+            } else {
+                partitions[lo] = merge(lo);
+            }
+        }
+
+        private Map<K, B> merge(int partition) {
+            Map<K, B> merged = null;
+
+            for (Buffer worker : workers) {
+                Map<K, B> local = ((PartitionBuffer) worker).partitions[partition];
+
+                if (merged == null || merged.size() < local.size()) {
+                    Map<K, B> temp = merged;
+                    merged = local;
+                    local = temp;
+                }
+                
+                if (local == null) {
+                    continue;
+                }
+
+                for (Entry<K, B> kv : local.entrySet()) {
+                    B values = merged.putIfAbsent(kv.getKey(), kv.getValue());
+                    if (values != null) {
+                        combiner.accept(values, kv.getValue());
+                    }
+                }
+            }
+
+            return merged == null ? new HashMap<>() : merged;
+        }
+    }
+}
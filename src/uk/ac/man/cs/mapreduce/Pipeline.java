@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/*
+ * Chains map-only stages and map-reduce jobs over one runtime. Each stage's
+ * pairs go straight into the next stage's mapper as they are produced: a
+ * map-only stage runs inside the emitter of the stage before it, and a job's
+ * mapper runs inside the result sink of the job before it. No stage hands a
+ * result list to the next, except at a broadcast barrier.
+ */
+public final class Pipeline<I, K, V> {
+
+    private final Source<I, K, V> source;
+
+    private Pipeline(Source<I, K, V> source) {
+        this.source = source;
+    }
+
+    public static <I, K, V> Pipeline<I, K, V> from(Mapper<I, K, V> mapper) {
+        return new Pipeline<>((fjp, inputs, emitters) ->
+                MapRunner.phase(mapper, inputs).map(fjp, emitters));
+    }
+
+    public static <I, K, V> Pipeline<I, K, V> from(MapReduce<I, K, V> job) {
+        return new Pipeline<>((fjp, inputs, emitters) ->
+                job.execute(fjp, job.phase(inputs), perRecord(emitters)));
+    }
+
+    public <K2, V2> Pipeline<I, K2, V2> map(Mapper<KeyValue<K, V>, K2, V2> mapper) {
+        return new Pipeline<>((fjp, inputs, emitters) ->
+                source.feed(fjp, inputs, fuse(mapper, emitters)));
+    }
+
+    public <K2, V2> Pipeline<I, K2, V2> then(MapReduce<KeyValue<K, V>, K2, V2> job) {
+        return new Pipeline<>((fjp, inputs, emitters) ->
+                job.execute(fjp,
+                        (pool, jobEmitters) -> source.feed(pool, inputs, fuse(job.getMapper(), jobEmitters)),
+                        perRecord(emitters)));
+    }
+
+    // Ends the stage at a barrier. Every pair is given to the accumulator of
+    // a fresh state, which is published through the broadcast before the
+    // pairs are passed on, so later stages can read it in full.
+    public <S> Pipeline<I, K, V> broadcast(
+            Broadcast<S> broadcast, Supplier<S> factory, Function<S, Emitter<K, V>> accumulator) {
+        return broadcast(broadcast, factory, accumulator, null);
+    }
+
+    // As above, with the pairs passed on after the barrier split by weight,
+    // heaviest first, for when the next stage's cost varies from pair to pair.
+    public <S> Pipeline<I, K, V> broadcast(
+            Broadcast<S> broadcast, Supplier<S> factory, Function<S, Emitter<K, V>> accumulator,
+            ToLongFunction<? super KeyValue<K, V>> weight) {
+        return new Pipeline<>((fjp, inputs, emitters) -> {
+            S state = factory.get();
+            Emitter<K, V> accumulate = accumulator.apply(state);
+            ListCollector<K, V> pairs = new ListCollector<>();
+
+            source.feed(fjp, inputs, new Collector<K, V>() {
+                @Override
+                public Emitter<K, V> acquire() {
+                    return new TeeEmitter<>(accumulate, pairs.acquire());
+                }
+
+                @Override
+                public void release(Emitter<K, V> emitter) {
+                    pairs.release(((TeeEmitter<K, V>) emitter).buffer);
+                }
+            });
+
+            broadcast.set(state);
+
+            MapRunner.phase((KeyValue<K, V> kv, Emitter<K, V> emitter) ->
+                    emitter.emit(kv.getKey(), kv.getValue()), pairs.results(), weight).map(fjp, emitters);
+        });
+    }
+
+    public List<KeyValue<K, V>> run(List<I> inputs, MapReduceRuntime runtime) {
+        ListCollector<K, V> results = new ListCollector<>();
+        source.feed(runtime.getPool(), inputs, results);
+        return results.results();
+    }
+
+    // The sink receives the pairs of the last stage, possibly from several
+    // threads at once.
+    public void runInto(List<I> inputs, MapReduceRuntime runtime, Emitter<K, V> sink) {
+        source.feed(runtime.getPool(), inputs, () -> sink);
+    }
+
+    private static <K, V, K2, V2> Collector<K, V> fuse(
+            Mapper<KeyValue<K, V>, K2, V2> mapper, Collector<K2, V2> emitters) {
+        return new Collector<K, V>() {
+            @Override
+            public Emitter<K, V> acquire() {
+                return new FusedEmitter<>(mapper, emitters.acquire());
+            }
+
+            @Override
+            public void release(Emitter<K, V> emitter) {
+                emitters.release(((FusedEmitter<K, V, K2, V2>) emitter).downstream);
+            }
+        };
+    }
+
+    // Results of a reduce arrive one at a time on whichever thread produced
+    // them, so the downstream emitter is taken for each one.
+    private static <K, V> Emitter<K, V> perRecord(Collector<K, V> emitters) {
+        return (key, value) -> {
+            Emitter<K, V> emitter = emitters.acquire();
+            try {
+                emitter.emit(key, value);
+            } finally {
+                emitters.release(emitter);
+            }
+        };
+    }
+
+    private interface Source<I, K, V> {
+
+        public void feed(ForkJoinPool fjp, List<I> inputs, Collector<K, V> emitters);
+    }
+
+    private static class FusedEmitter<K, V, K2, V2> implements Emitter<K, V> {
+
+        private final Mapper<KeyValue<K, V>, K2, V2> mapper;
+
+        private final Emitter<K2, V2> downstream;
+
+        private FusedEmitter(Mapper<KeyValue<K, V>, K2, V2> mapper, Emitter<K2, V2> downstream) {
+            this.mapper = mapper;
+            this.downstream = downstream;
+        }
+
+        @Override
+        public void emit(K key, V value) {
+            mapper.map(new KeyValue<>(key, value), downstream);
+        }
+    }
+
+    private static class TeeEmitter<K, V> implements Emitter<K, V> {
+
+        private final Emitter<K, V> accumulate;
+
+        private final Emitter<K, V> buffer;
+
+        private TeeEmitter(Emitter<K, V> accumulate, Emitter<K, V> buffer) {
+            this.accumulate = accumulate;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void emit(K key, V value) {
+            accumulate.emit(key, value);
+            buffer.emit(key, value);
+        }
+    }
+
+    private static class ListCollector<K, V> implements Collector<K, V> {
+
+        private final ConcurrentLinkedQueue<ListEmitter<K, V>> emitters = new ConcurrentLinkedQueue<>();
+
+        private final ConcurrentLinkedDeque<ListEmitter<K, V>> available = new ConcurrentLinkedDeque<>();
+
+        @Override
+        public Emitter<K, V> acquire() {
+            ListEmitter<K, V> emitter = available.pollFirst();
+            if (emitter == null) {
+                emitter = new ListEmitter<>();
+                emitters.add(emitter);
+            }
+            return emitter;
+        }
+
+        @Override
+        public void release(Emitter<K, V> emitter) {
+            available.addFirst((ListEmitter<K, V>) emitter);
+        }
+
+        private List<KeyValue<K, V>> results() {
+            int size = 0;
+            for (ListEmitter<K, V> emitter : emitters) {
+                size += emitter.results.size();
+            }
+            List<KeyValue<K, V>> results = new ArrayList<>(size);
+            for (ListEmitter<K, V> emitter : emitters) {
+                results.addAll(emitter.results);
+            }
+            return results;
+        }
+    }
+
+    private static class ListEmitter<K, V> implements Emitter<K, V> {
+
+        private final List<KeyValue<K, V>> results = new ArrayList<>();
+
+        @Override
+        public void emit(K key, V value) {
+            results.add(new KeyValue<>(key, value));
+        }
+    }
+}
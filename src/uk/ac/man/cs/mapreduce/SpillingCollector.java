@@ -0,0 +1,405 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+
+/*
+ * Partitioned collector that writes a worker's buffers to a temporary run
+ * file once they hold more than their share of the record budget. Each run
+ * stores every partition as a segment of entries ordered by key hash, so a
+ * partition is later rebuilt by streaming a k-way merge over its segments,
+ * holding only the values of one key in memory at a time. No merge reads
+ * more than MAX_FAN_IN runs at once; beyond that, runs are first merged in
+ * passes into fewer, larger ones.
+ */
+class SpillingCollector<K, V> extends PartitionedCollector<K, V, List<V>> {
+
+    private static final int MAX_FAN_IN = 16;
+
+    // The budget counts records, this turns it into bytes to size the
+    // stream buffers with.
+    private static final int RECORD_BYTES = 64;
+
+    private static final int MIN_IO_BUFFER_SIZE = 1 << 12;
+
+    private static final int MAX_IO_BUFFER_SIZE = 1 << 16;
+
+    private final long bufferLimit;
+
+    // Sized so that the readers of the merges running at once hold about
+    // as many bytes as the budget's records.
+    private final int ioBufferSize;
+
+    private final Codec<K> keyCodec;
+
+    private final Codec<V> valueCodec;
+
+    private final File directory;
+
+    private final ConcurrentLinkedQueue<Run> runs = new ConcurrentLinkedQueue<>();
+
+    SpillingCollector(
+            int parallelism, long budget,
+            Codec<K> keyCodec, Codec<V> valueCodec, File directory) {
+        super(parallelism, ArrayList::new, List::add, List::addAll);
+        this.bufferLimit = Math.max(1, budget / Math.max(1, parallelism));
+        this.ioBufferSize = (int) Math.max(MIN_IO_BUFFER_SIZE, Math.min(MAX_IO_BUFFER_SIZE,
+                budget * RECORD_BYTES / ((long) Math.max(1, parallelism) * MAX_FAN_IN)));
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.directory = directory;
+    }
+
+    boolean hasSpilled() {
+        return !runs.isEmpty();
+    }
+
+    // Spills whatever the workers still hold, in parallel, so that every
+    // record is on disk before the partitions are merged. Runs are then
+    // merged in passes until a partition can be merged from all of them.
+    void flush(ForkJoinPool fjp) {
+        Buffer[] buffers = getBuffers();
+
+        fjp.invoke(new IndexAction(0, buffers.length, i -> {
+            SpillBuffer buffer = (SpillBuffer) buffers[i];
+            if (buffer.records > 0) {
+                buffer.spill();
+            }
+        }));
+
+        while (runs.size() > MAX_FAN_IN) {
+            List<Run> pass = new ArrayList<>(runs);
+            runs.clear();
+
+            int groups = (pass.size() + MAX_FAN_IN - 1) / MAX_FAN_IN;
+
+            fjp.invoke(new IndexAction(0, groups, g -> {
+                List<Run> group = pass.subList(g * MAX_FAN_IN, Math.min(pass.size(), (g + 1) * MAX_FAN_IN));
+                try {
+                    combine(group);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    for (Run run : group) {
+                        run.file.delete();
+                    }
+                }
+            }));
+        }
+    }
+
+    // Writes the runs out as one, partition by partition, still in hash
+    // order. Entries of the same key are left for the final merge to join.
+    private void combine(List<Run> group) throws IOException {
+        try (RunWriter writer = new RunWriter()) {
+            for (int p = 0; p < getPartitionCount(); p++) {
+                writer.partition(p);
+
+                List<RunReader> readers = open(group, p);
+                try {
+                    PriorityQueue<RunReader> heads = heads(readers);
+                    while (!heads.isEmpty()) {
+                        RunReader reader = heads.poll();
+                        writer.write(reader.hash, reader.key, reader.values);
+                        if (reader.advance()) {
+                            heads.add(reader);
+                        }
+                    }
+                } finally {
+                    close(readers);
+                }
+            }
+        }
+    }
+
+    private List<RunReader> open(List<Run> runs, int partition) throws IOException {
+        List<RunReader> readers = new ArrayList<>(runs.size());
+        try {
+            for (Run run : runs) {
+                readers.add(new RunReader(run, partition));
+            }
+        } catch (IOException e) {
+            close(readers);
+            throw e;
+        }
+        return readers;
+    }
+
+    private PriorityQueue<RunReader> heads(List<RunReader> readers) throws IOException {
+        PriorityQueue<RunReader> heads = new PriorityQueue<>(
+                Math.max(1, readers.size()),
+                (r1, r2) -> Integer.compareUnsigned(r1.hash, r2.hash));
+        for (RunReader reader : readers) {
+            if (reader.advance()) {
+                heads.add(reader);
+            }
+        }
+        return heads;
+    }
+
+    private void close(List<RunReader> readers) {
+        for (RunReader reader : readers) {
+            reader.close();
+        }
+    }
+
+    void merge(int partition, BiConsumer<K, List<V>> consumer) {
+        List<RunReader> readers = null;
+
+        try {
+            readers = open(new ArrayList<>(runs), partition);
+
+            PriorityQueue<RunReader> heads = heads(readers);
+
+            Map<K, List<V>> group = new LinkedHashMap<>();
+
+            while (!heads.isEmpty()) {
+                int hash = heads.peek().hash;
+
+                // Equal keys have equal hashes, so all of a key's values
+                // are at the heads of the runs at the same time.
+                while (!heads.isEmpty() && heads.peek().hash == hash) {
+                    RunReader reader = heads.poll();
+
+                    List<V> values = group.get(reader.key);
+                    if (values == null) {
+                        group.put(reader.key, reader.values);
+                    } else {
+                        values.addAll(reader.values);
+                    }
+
+                    if (reader.advance()) {
+                        heads.add(reader);
+                    }
+                }
+
+                for (Entry<K, List<V>> kv : group.entrySet()) {
+                    consumer.accept(kv.getKey(), kv.getValue());
+                }
+                group.clear();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (readers != null) {
+                close(readers);
+            }
+        }
+    }
+
+    void delete() {
+        Run run;
+        while ((run = runs.poll()) != null) {
+            run.file.delete();
+        }
+    }
+
+    private int hash(K key) {
+        return key.hashCode() * 0x9E3779B9;
+    }
+
+    @Override
+    Buffer newBuffer() {
+        return new SpillBuffer();
+    }
+
+    private static class Run {
+
+        private final File file;
+
+        private final long[] offsets;
+
+        private final int[] counts;
+
+        private Run(File file, int partitions) {
+            this.file = file;
+            this.offsets = new long[partitions];
+            this.counts = new int[partitions];
+        }
+    }
+
+    private class SpillBuffer extends PartitionBuffer {
+
+        private long records;
+
+        @Override
+        public void emit(K key, V value) {
+            super.emit(key, value);
+            if (++records >= bufferLimit) {
+                spill();
+            }
+        }
+
+        private void spill() {
+            try (RunWriter writer = new RunWriter()) {
+                for (int p = 0; p < partitions.length; p++) {
+                    Entry<K, List<V>>[] entries
+                            = partitions[p].entrySet().toArray(new Entry[0]);
+
+                    Arrays.sort(entries, (kv1, kv2) ->
+                            Integer.compareUnsigned(hash(kv1.getKey()), hash(kv2.getKey())));
+
+                    writer.partition(p);
+
+                    for (Entry<K, List<V>> kv : entries) {
+                        writer.write(hash(kv.getKey()), kv.getKey(), kv.getValue());
+                    }
+
+                    partitions[p].clear();
+                }
+
+                records = 0;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Creates a run and adds it to the collector's runs once it is complete.
+    private class RunWriter implements AutoCloseable {
+
+        private final Run run;
+
+        private final FileOutputStream fos;
+
+        private final DataOutputStream out;
+
+        private int partition = -1;
+
+        private RunWriter() throws IOException {
+            File file = File.createTempFile("mapreduce-", ".run", directory);
+            this.run = new Run(file, getPartitionCount());
+            this.fos = new FileOutputStream(file);
+            this.out = new DataOutputStream(new BufferedOutputStream(fos, ioBufferSize));
+        }
+
+        private void partition(int partition) throws IOException {
+            out.flush();
+            run.offsets[partition] = fos.getChannel().position();
+            this.partition = partition;
+        }
+
+        private void write(int hash, K key, List<V> values) throws IOException {
+            out.writeInt(hash);
+            keyCodec.write(out, key);
+            out.writeInt(values.size());
+            for (V value : values) {
+                valueCodec.write(out, value);
+            }
+            run.counts[partition]++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.flush();
+            } finally {
+                fos.close();
+                runs.add(run);
+            }
+        }
+    }
+
+    private class RunReader {
+
+        private final InputStream stream;
+
+        private final DataInputStream in;
+
+        private int remaining;
+
+        private int hash;
+
+        private K key;
+
+        private List<V> values;
+
+        private RunReader(Run run, int partition) throws IOException {
+            FileInputStream fis = new FileInputStream(run.file);
+            fis.getChannel().position(run.offsets[partition]);
+            this.stream = fis;
+            this.in = new DataInputStream(new BufferedInputStream(fis, ioBufferSize));
+            this.remaining = run.counts[partition];
+        }
+
+        private boolean advance() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            hash = in.readInt();
+            key = keyCodec.read(in);
+            int count = in.readInt();
+            values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                values.add(valueCodec.read(in));
+            }
+            return true;
+        }
+
+        private void close() {
+            try {
+                stream.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private static class IndexAction extends RecursiveAction {
+
+        private final int lo, hi;
+
+        private final IntConsumer action;
+
+        private IndexAction(int lo, int hi, IntConsumer action) {
+            this.lo = lo;
+            this.hi = hi;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mi = lo + ((hi - lo) >> 1);
+                invokeAll(new IndexAction(lo, mi, action), new IndexAction(mi, hi, action));
+            } else if (hi > lo) {
+                action.accept(lo);
+            }
+        }
+    }
+}
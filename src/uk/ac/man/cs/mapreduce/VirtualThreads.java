@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Threads for map tasks that may block. Java 8 has no virtual threads, so
+ * this version falls back on a fixed pool of daemon platform threads, one per
+ * permitted task. The multi-release jar carries a Java 21 version of this
+ * class, built from src-java21, that starts a virtual thread per task.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    static ExecutorService newExecutor(int concurrency) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(concurrency, task -> {
+            Thread thread = new Thread(task, "mapreduce-map-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/*
+ * Base for collectors that hand each running map task a private buffer, so
+ * that emits never contend. Buffers are recycled between tasks rather than
+ * bound to threads, and are merged once the map phase has completed.
+ */
+abstract class WorkerCollector<K, V, B> implements Collector<K, V> {
+
+    final Supplier<B> factory;
+
+    final BiConsumer<B, V> accumulator;
+
+    final BiConsumer<B, B> combiner;
+
+    private final ConcurrentLinkedQueue<Buffer> buffers = new ConcurrentLinkedQueue<>();
+
+    private final ConcurrentLinkedDeque<Buffer> available = new ConcurrentLinkedDeque<>();
+
+    WorkerCollector(
+            Supplier<B> factory,
+            BiConsumer<B, V> accumulator, BiConsumer<B, B> combiner) {
+        this.factory = factory;
+        this.accumulator = accumulator;
+        this.combiner = combiner;
+    }
+
+    @Override
+    public Buffer acquire() {
+        Buffer buffer = available.pollFirst();
+        if (buffer == null) {
+            buffer = newBuffer();
+            buffers.add(buffer);
+        }
+        return buffer;
+    }
+
+    @Override
+    public void release(Emitter<K, V> emitter) {
+        available.addFirst((Buffer) emitter);
+    }
+
+    Buffer[] getBuffers() {
+        return buffers.toArray((Buffer[]) new WorkerCollector.Buffer[0]);
+    }
+
+    abstract Buffer newBuffer();
+
+    abstract Entry<K, B>[] merge(ForkJoinPool fjp);
+
+    abstract class Buffer implements Emitter<K, V> {
+
+        abstract B values(K key);
+
+        @Override
+        public void emit(K key, V value) {
+            accumulator.accept(values(key), value);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * A fixed set of daemon threads, each serving a queue of its own. Tasks are
+ * dealt out round robin and never move between queues, so scheduling costs
+ * one queue operation per task, at the price of no balancing once dealt.
+ */
+final class WorkerQueues implements AutoCloseable {
+
+    private static final Runnable STOP = () -> {
+    };
+
+    private final BlockingQueue<Runnable>[] queues;
+
+    private final Thread[] threads;
+
+    @SuppressWarnings("unchecked")
+    WorkerQueues(int count) {
+        queues = new BlockingQueue[count];
+        threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+            Thread thread = new Thread(() -> serve(queue), "mapreduce-worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            queues[i] = queue;
+            threads[i] = thread;
+        }
+    }
+
+    private static void serve(BlockingQueue<Runnable> queue) {
+        try {
+            for (Runnable task = queue.take(); task != STOP; task = queue.take()) {
+                task.run();
+            }
+        } catch (InterruptedException ignore) {
+        }
+    }
+
+    int size() {
+        return queues.length;
+    }
+
+    // Task i goes to queue i modulo the number of threads. Returns once every
+    // task has run, tasks that have not started by the first failure are
+    // skipped and the failure is rethrown.
+    void invokeAll(List<Runnable> tasks) {
+        CountDownLatch done = new CountDownLatch(tasks.size());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        for (int i = 0; i < tasks.size(); i++) {
+            Runnable task = tasks.get(i);
+            queues[i % queues.length].add(() -> {
+                try {
+                    if (failure.get() == null) {
+                        task.run();
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        // The job may be running on a pool worker, through runAsync, so the
+        // wait lets the pool compensate for the parked thread.
+        try {
+            ForkJoinPool.managedBlock(new LatchBlocker(done));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while mapping");
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+    }
+
+    @Override
+    public void close() {
+        for (BlockingQueue<Runnable> queue : queues) {
+            queue.add(STOP);
+        }
+    }
+
+    // Once closed, waits for the threads to finish their queues and exit.
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            TimeUnit.NANOSECONDS.timedJoin(thread, Math.max(0, deadline - System.nanoTime()));
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class LatchBlocker implements ForkJoinPool.ManagedBlocker {
+
+        private final CountDownLatch latch;
+
+        LatchBlocker(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            latch.await();
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return latch.getCount() == 0;
+        }
+    }
+}
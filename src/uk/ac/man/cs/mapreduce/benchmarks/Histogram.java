@@ -17,6 +17,8 @@ package uk.ac.man.cs.mapreduce.benchmarks;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import uk.ac.man.cs.mapreduce.*;
@@ -31,55 +33,70 @@ public class Histogram {
     private static final int DATA_POSITION_OFFSET = 10;
     private static final int BITS_PER_PIXEL_OFFSET = 28;
     
-    private final MapReduce<byte[], Pixel, Integer> mrj;
+    public final MapReduce<ByteBuffer, Pixel, Integer> mrj;
     
-    private Pixel[] redPixels = new Pixel[256];
-    private Pixel[] greenPixels = new Pixel[256];
-    private Pixel[] bluePixels = new Pixel[256];
+    private static final int RED = Colour.RED.ordinal() * 256;
+    private static final int GREEN = Colour.GREEN.ordinal() * 256;
+    private static final int BLUE = Colour.BLUE.ordinal() * 256;
+    
+    // Indexed like the dense keys, so a map task emits all its counts at once
+    private Pixel[] pixels = new Pixel[3 * 256];
 
     public Histogram() {
         mrj = new MapReduce<>(mapper, reducer);
+        mrj.setCollectorMode(CollectorMode.PARTITIONED);
+        mrj.setInputWeight(ByteBuffer::remaining);
+        mrj.setDenseKeys(3 * 256, pixel -> pixel.getColour().ordinal() * 256 + pixel.getValue());
 
         for (int i = 0; i < 256; i++) {
-            redPixels[i] = new Pixel(Colour.RED, i);
-            greenPixels[i] = new Pixel(Colour.GREEN, i);
-            bluePixels[i] = new Pixel(Colour.BLUE, i);
+            pixels[RED + i] = new Pixel(Colour.RED, i);
+            pixels[GREEN + i] = new Pixel(Colour.GREEN, i);
+            pixels[BLUE + i] = new Pixel(Colour.BLUE, i);
         }
     }
     
-    private Mapper<byte[], Pixel, Integer> mapper = new Mapper<byte[], Pixel, Integer>() {
+    private Mapper<ByteBuffer, Pixel, Integer> mapper = new Mapper<ByteBuffer, Pixel, Integer>() {
         @Override
-        public void map(byte[] input, Emitter<Pixel, Integer> emitter) {
-            int[] redValues = new int[256];
-            int[] greenValues = new int[256];
-            int[] blueValues = new int[256];
+        public void map(ByteBuffer input, Emitter<Pixel, Integer> emitter) {
+            int[] values = new int[3 * 256];
 
-            int length = input.length - (input.length % 3);
+            int start = input.position();
+            int end = input.limit() - (input.remaining() % 3);
 
-            for (int i = 0; i < length; i += 3) {
-                blueValues[(int) input[i] & 0xFF]++;
-                greenValues[(int) input[i + 1] & 0xFF]++;
-                redValues[(int) input[i + 2] & 0xFF]++;
+            for (int i = start; i < end; i += 3) {
+                values[BLUE + ((int) input.get(i) & 0xFF)]++;
+                values[GREEN + ((int) input.get(i + 1) & 0xFF)]++;
+                values[RED + ((int) input.get(i + 2) & 0xFF)]++;
             }
 
-            for (int i = 0; i < 256; i++) {
-                emitter.emit(bluePixels[i], blueValues[i]);
-                emitter.emit(greenPixels[i], greenValues[i]);
-                emitter.emit(redPixels[i], redValues[i]);
+            Integer[] counts = new Integer[values.length];
+            for (int i = 0; i < values.length; i++) {
+                counts[i] = values[i];
             }
+
+            emitter.emitAll(pixels, counts);
         }
     };
     
-    private Reducer<Pixel, Integer> reducer = new Reducer<Pixel, Integer>() {
+    private Reducer<Pixel, Integer> reducer = new CombiningReducer<Pixel, Integer, Sum>() {
         @Override
-        public void reduce(Pixel key, List<Integer> values, Emitter<Pixel, Integer> emitter) {
-            int sum = 0;
+        public Sum create() {
+            return new Sum();
+        }
 
-            for (Integer i : values) {
-                sum += i;
-            }
+        @Override
+        public void accumulate(Sum holder, Integer value) {
+            holder.sum += value;
+        }
 
-            emitter.emit(key, sum);
+        @Override
+        public void merge(Sum holder, Sum other) {
+            holder.sum += other.sum;
+        }
+
+        @Override
+        public Integer result(Sum holder) {
+            return holder.sum;
         }
     };
     
@@ -91,9 +108,23 @@ public class Histogram {
     }
     
     public long run(List<byte[]> input, int parallelism, boolean verbose) throws Exception {
+        List<ByteBuffer> buffers = new ArrayList<>(input.size());
+        for (byte[] bytes : input) {
+            buffers.add(ByteBuffer.wrap(bytes));
+        }
+        return runBuffers(buffers, parallelism, verbose);
+    }
+    
+    public long runBuffers(List<ByteBuffer> input, int parallelism, boolean verbose) throws Exception {
+        try (MapReduceRuntime runtime = new MapReduceRuntime(parallelism)) {
+            return runBuffers(input, runtime, verbose);
+        }
+    }
+    
+    public long runBuffers(List<ByteBuffer> input, MapReduceRuntime runtime, boolean verbose) throws Exception {
         long startTime = System.currentTimeMillis();
 
-        List<KeyValue<Pixel, Integer>> results = mrj.run(input, parallelism);
+        List<KeyValue<Pixel, Integer>> results = mrj.run(input, runtime, sorter, 10);
 
         long stopTime = System.currentTimeMillis();
 
@@ -167,7 +198,7 @@ public class Histogram {
 
             Histogram hist = new Histogram();
 
-            hist.run(Splitter.fileToByteBuffers(inputFile, bufferSize, dataOffset), parallelism, verbose);
+            hist.runBuffers(Splitter.fileToMappedBuffers(inputFile, bufferSize, dataOffset), parallelism, verbose);
 
             //-------------- END --------------
 
@@ -176,7 +207,12 @@ public class Histogram {
         }
     }
 
-    private class Pixel {
+    private static class Sum extends Holder {
+
+        private int sum;
+    }
+
+    public class Pixel {
 
         private final Colour colour;
         private final int value;
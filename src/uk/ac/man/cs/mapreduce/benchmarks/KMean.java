@@ -23,12 +23,20 @@ import uk.ac.man.cs.mapreduce.*;
 
 public class KMean {
 
-    private Point[] means;
+    private final Broadcast<Point[]> means = new Broadcast<>();
 
     private final MapReduce<Point, Integer, Point> mrj;
 
+    private Random random = new Random();
+
     private Integer[] indices;
 
+    private Point[] initial;
+
+    private List<Point> input;
+
+    private int gridSize;
+
     public KMean() {
         mrj = new MapReduce<>(mapper, reducer);
     }
@@ -37,10 +45,12 @@ public class KMean {
 
         @Override
         public void map(Point input, Emitter<Integer, Point> emitter) {
+            Point[] current = means.get();
+            
             int closestMean = 0, closestDistance = Integer.MAX_VALUE;
 
-            for (int i = 0; i < means.length; i++) {
-                int distance = input.getDistance(means[i]);
+            for (int i = 0; i < current.length; i++) {
+                int distance = input.getDistance(current[i]);
 
                 if (distance < closestDistance) {
                     closestMean = i;
@@ -52,76 +62,116 @@ public class KMean {
         }
     };
 
-    private Reducer<Integer, Point> reducer = new Reducer<Integer, Point>() {
+    private Reducer<Integer, Point> reducer = new CombiningReducer<Integer, Point, AveragingPoint>() {
 
         @Override
-        public void reduce(Integer key, List<Point> values, Emitter<Integer, Point> emitter) {
-            AveragingPoint intermediate = new AveragingPoint();
+        public AveragingPoint create() {
+            return new AveragingPoint();
+        }
 
-            for (Point p : values) {
-                intermediate.addPoint(p);
-            }
-            
-            emitter.emit(key, intermediate.getAverage());
+        @Override
+        public void accumulate(AveragingPoint holder, Point value) {
+            holder.addPoint(value);
+        }
+
+        @Override
+        public void merge(AveragingPoint holder, AveragingPoint other) {
+            holder.addPoints(other);
+        }
+
+        @Override
+        public Point result(AveragingPoint holder) {
+            return holder.getAverage();
+        }
+    };
+
+    // Each round replaces the means that moved, the job has converged once
+    // a round leaves all of them in place.
+    private Step<Integer, Point, Point[]> step = new Step<Integer, Point, Point[]>() {
+
+        private Point[] next;
+
+        private volatile boolean modified;
+
+        @Override
+        public Emitter<Integer, Point> results(Point[] current) {
+            next = current.clone();
+            modified = false;
+            return (i, p) -> {
+                if (!p.equals(current[i])) {
+                    next[i] = p;
+                    modified = true;
+                }
+            };
+        }
+
+        @Override
+        public Point[] next(Point[] current) {
+            return modified ? next : null;
         }
     };
 
+    public void setSeed(long seed) {
+        random = new Random(seed);
+    }
+
     public long run(int dimensions, int clusters, int gridSize, int points, int parallelism) throws Exception {
         return run(dimensions, clusters, gridSize, points, parallelism, false);
     }
 
     public long run(int dimensions, int clusters, int gridSize, int points, int parallelism, boolean verbose) throws Exception {
-        means = new Point[clusters];
+        generate(dimensions, clusters, gridSize, points);
+
+        try (MapReduceRuntime runtime = new MapReduceRuntime(parallelism)) {
+            return run(runtime, verbose);
+        }
+    }
+
+    public void generate(int dimensions, int clusters, int gridSize, int points) {
+        initial = new Point[clusters];
         indices = new Integer[clusters];
         
         for (int i = 0; i < clusters; i++) {
-            means[i] = new Point(dimensions, gridSize);
+            initial[i] = new Point(dimensions, gridSize);
             indices[i] = i;
         }
+        
+        mrj.setDenseKeys(clusters, Integer::intValue);
 
-        List<Point> input = new ArrayList<>(points);
+        input = new ArrayList<>(points);
         for (int i = 0; i < points; i++) {
             input.add(new Point(dimensions, gridSize));
         }
 
-        boolean modified = true;
+        this.gridSize = gridSize;
+    }
 
-        int iterations = 0;
+    // Clusters the points of the last generate, from the same initial means
+    public long run(MapReduceRuntime runtime) throws Exception {
+        return run(runtime, false);
+    }
 
+    public long run(MapReduceRuntime runtime, boolean verbose) throws Exception {
         long startTime = System.currentTimeMillis();
 
-        while (modified) {
-            iterations++;
-
-            modified = false;
-
-            for (KeyValue<Integer, Point> kvp : mrj.run(input, parallelism)) {
-                int i = kvp.getKey();
-                Point p = kvp.getValue();
-
-                if (!p.equals(means[i])) {
-                    modified = true;
-                    means[i] = p;
-                }
-            }
-        }
+        int iterations = mrj.iterate(input, runtime, means, initial, step, Integer.MAX_VALUE);
 
         long stopTime = System.currentTimeMillis();
 
         if (verbose) {
             System.out.println("   KMEANS ON");
-            System.out.println("    points = " + points);
+            System.out.println("    points = " + input.size());
             System.out.println("      grid = " + gridSize);
-            System.out.println("dimensions = " + dimensions);
-            System.out.println("  clusters = " + clusters);
+            System.out.println("dimensions = " + initial[0].getDimensions());
+            System.out.println("  clusters = " + initial.length);
             System.out.println("ITERATIONS = " + iterations);
             System.out.printf("          in %-5d (%3d)\n", (stopTime - startTime), (stopTime - startTime) / iterations);
         }
 
-        return (stopTime - startTime) / iterations;
+        return stopTime - startTime;
     }
 
-    private class AveragingPoint {
+    private class AveragingPoint extends Holder {
         private long[] position = null;
         private int points = 0;
         
@@ -139,6 +189,19 @@ public class KMean {
             points++;
         }
         
+        public void addPoints(AveragingPoint other) {
+            if (other.position == null) {
+                return;
+            }
+            if (position == null) {
+                position = new long[other.position.length];
+            }
+            for (int i = 0; i < position.length; i++) {
+                position[i] += other.position[i];
+            }
+            points += other.points;
+        }
+        
         public Point getAverage() {
             if (position == null) {
                 return null;
@@ -156,10 +219,9 @@ public class KMean {
         private int[] position;
 
         protected Point(int dimensions, int gridSize) {
-            Random r = new Random();
             position = new int[dimensions];
             for (int i = 0; i < position.length; i++) {
-                position[i] = r.nextInt(gridSize);
+                position[i] = random.nextInt(gridSize);
             }
         }
 
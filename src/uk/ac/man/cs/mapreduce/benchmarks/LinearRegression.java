@@ -15,6 +15,8 @@
  */
 package uk.ac.man.cs.mapreduce.benchmarks;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import uk.ac.man.cs.mapreduce.*;
@@ -27,19 +29,24 @@ public class LinearRegression {
 
         X, Y, XX, YY, XY, NUM
     };
+    
+    private static final Key[] KEYS = Key.values();
 
-    public final MapReduce<byte[], Key, Long> mrj;
+    public final MapReduce<ByteBuffer, Key, Long> mrj;
 
     public LinearRegression() {
         mrj = new MapReduce<>(mapper, reducer);
+        mrj.setCollectorMode(CollectorMode.PARTITIONED);
+        mrj.setInputWeight(ByteBuffer::remaining);
+        mrj.setDenseKeys(Key.values().length, Key::ordinal);
     }
     
-    private Mapper<byte[], Key, Long> mapper = new Mapper<byte[], Key, Long>() {
+    private Mapper<ByteBuffer, Key, Long> mapper = new Mapper<ByteBuffer, Key, Long>() {
         
         @Override
-        public void map(byte[] input, Emitter<Key, Long> emitter) {
+        public void map(ByteBuffer input, Emitter<Key, Long> emitter) {
             
-            sizeOfInput.addAndGet(input.length);
+            sizeOfInput.addAndGet(input.remaining());
             
             long sx = 0;
             long sy = 0;
@@ -47,11 +54,14 @@ public class LinearRegression {
             long syy = 0;
             long sxy = 0;
 
-            int length = input.length & 0xFFFFFFFE;
+            int length = input.remaining() & 0xFFFFFFFE;
+
+            int start = input.position();
+            int end = start + length;
 
-            for (int i = 0; i < length; i += 2) {
-                long x = input[i];
-                long y = input[i + 1];
+            for (int i = start; i < end; i += 2) {
+                long x = input.get(i);
+                long y = input.get(i + 1);
 
                 sx += x;
                 sxx += x * x;
@@ -60,39 +70,62 @@ public class LinearRegression {
                 sxy += x * y;
             }
 
-            emitter.emit(Key.X, sx);
-            emitter.emit(Key.Y, sy);
-            emitter.emit(Key.XX, sxx);
-            emitter.emit(Key.YY, syy);
-            emitter.emit(Key.XY, sxy);
-            emitter.emit(Key.NUM, new Long(length / 2));
+            emitter.emitAll(KEYS, new Long[] {sx, sy, sxx, syy, sxy, (long) (length / 2)});
         }
     };
     
-    private Reducer<Key, Long> reducer = new Reducer<Key, Long>() {
+    private Reducer<Key, Long> reducer = new CombiningReducer<Key, Long, Sum>() {
         
         @Override
-        public void reduce(Key key, List<Long> values, Emitter<Key, Long> emitter) {
-            long sum = 0;
+        public Sum create() {
+            return new Sum();
+        }
 
-            for (Long l : values) {
-                sum += l;
-            }
+        @Override
+        public void accumulate(Sum holder, Long value) {
+            holder.sum += value;
+        }
 
-            emitter.emit(key, sum);
+        @Override
+        public void merge(Sum holder, Sum other) {
+            holder.sum += other.sum;
+        }
+
+        @Override
+        public Long result(Sum holder) {
+            return holder.sum;
         }
     };
     
+    private static class Sum extends Holder {
+
+        private long sum;
+    }
+    
     public long run(List<byte[]> input, int parallelism) throws Exception {
         return run(input, parallelism, false);
     }
 
     public long run(List<byte[]> input, int parallelism, boolean verbose) throws Exception {
+        List<ByteBuffer> buffers = new ArrayList<>(input.size());
+        for (byte[] bytes : input) {
+            buffers.add(ByteBuffer.wrap(bytes));
+        }
+        return runBuffers(buffers, parallelism, verbose);
+    }
+
+    public long runBuffers(List<ByteBuffer> input, int parallelism, boolean verbose) throws Exception {
+        try (MapReduceRuntime runtime = new MapReduceRuntime(parallelism)) {
+            return runBuffers(input, runtime, verbose);
+        }
+    }
+
+    public long runBuffers(List<ByteBuffer> input, MapReduceRuntime runtime, boolean verbose) throws Exception {
         long startTime = System.currentTimeMillis();
 
         double sumX = 0, sumY = 0, sumXX = 0, sumYY = 0, sumXY = 0, n = 0;
 
-        for (KeyValue<Key, Long> kvp : mrj.run(input, parallelism)) {
+        for (KeyValue<Key, Long> kvp : mrj.run(input, runtime)) {
             switch (kvp.getKey()) {
                 case X:
                     sumX = kvp.getValue();
@@ -130,9 +163,8 @@ public class LinearRegression {
 
         long stopTime = System.currentTimeMillis();
 
-        System.out.println("Size = " + sizeOfInput.get());
-        
         if (verbose) {
+            System.out.println("Size = " + sizeOfInput.get());
             System.out.printf("LINEAR RECURCION\n");
             System.out.printf("     RESULTS\n");
             System.out.printf("         a = %.3f\n", a);
@@ -165,7 +197,7 @@ public class LinearRegression {
 
             LinearRegression lr = new LinearRegression();
 
-            lr.run(Splitter.fileToByteBuffers(inputFile, bufferSize), parallelism, verbose);
+            lr.runBuffers(Splitter.fileToMappedBuffers(inputFile, bufferSize), parallelism, verbose);
 
             //-------------- END --------------
 
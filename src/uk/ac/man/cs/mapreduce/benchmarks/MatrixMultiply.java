@@ -16,6 +16,7 @@
 package uk.ac.man.cs.mapreduce.benchmarks;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import uk.ac.man.cs.mapreduce.*;
@@ -37,8 +38,15 @@ public class MatrixMultiply {
     private final MapReduce<Task, Object, Integer> mrj;
     private static final Object SUM = new Object();
 
+    private Random random = new Random();
+
+    private int matrixSize;
+
+    private List<Task> input;
+
     public MatrixMultiply() {
         mrj = new MapReduce<>(mapper, reducer);
+        mrj.setCollectorMode(CollectorMode.PARTITIONED);
     }
     
     private final Mapper<Task, Object, Integer> mapper = new Mapper<Task, Object, Integer>() {
@@ -50,6 +58,9 @@ public class MatrixMultiply {
             int[] cRow = input.cRow;
             int size = aRow.length;
 
+            // From zero, so that the same input can be run again
+            Arrays.fill(cRow, 0);
+
             for (int i = 0; i < size; i++) {
                 int aI = aRow[i];
                 int[] bRow = b[i];
@@ -66,20 +77,39 @@ public class MatrixMultiply {
         }
     };
     
-    private final Reducer<Object, Integer> reducer = new Reducer<Object, Integer>() {
+    private final Reducer<Object, Integer> reducer = new CombiningReducer<Object, Integer, Sum>() {
 
         @Override
-        public void reduce(Object key, List<Integer> values, Emitter<Object, Integer> emitter) {
-            int sum = 0;
-            for (Integer s : values) {
-                sum += s;
-            }
-            emitter.emit(key, sum);
+        public Sum create() {
+            return new Sum();
+        }
+
+        @Override
+        public void accumulate(Sum holder, Integer value) {
+            holder.sum += value;
+        }
+
+        @Override
+        public void merge(Sum holder, Sum other) {
+            holder.sum += other.sum;
+        }
+
+        @Override
+        public Integer result(Sum holder) {
+            return holder.sum;
         }
     };
+    
+    private static class Sum extends Holder {
+
+        private int sum;
+    }
+
+    public void setSeed(long seed) {
+        random = new Random(seed);
+    }
 
     private int[][] generateMatrix(int matrixSize) {
-        Random random = new Random();
         int[][] matrix = new int[matrixSize][];
         for (int i = 0; i < matrixSize; i++) {
             matrix[i] = new int[matrixSize];
@@ -95,19 +125,36 @@ public class MatrixMultiply {
     }
     
     public long run(int matrixSize, int parallelism, boolean verbose) throws Exception {
+        generate(matrixSize);
+
+        try (MapReduceRuntime runtime = new MapReduceRuntime(parallelism)) {
+            return run(runtime, verbose);
+        }
+    }
+
+    public void generate(int matrixSize) {
         int[][] A = generateMatrix(matrixSize);
         int[][] B = generateMatrix(matrixSize);
         int[][] C = new int[matrixSize][matrixSize];
 
-        List<Task> input = new ArrayList<>(matrixSize);
+        input = new ArrayList<>(matrixSize);
 
         for (int i = 0; i < matrixSize; i++) {
             input.add(new Task(A[i], B, C[i]));
         }
 
+        this.matrixSize = matrixSize;
+    }
+
+    // Multiplies the matrices of the last generate
+    public long run(MapReduceRuntime runtime) throws Exception {
+        return run(runtime, false);
+    }
+
+    public long run(MapReduceRuntime runtime, boolean verbose) throws Exception {
         long startTime = System.currentTimeMillis();
 
-        List<KeyValue<Object, Integer>> result = mrj.run(input, parallelism);
+        List<KeyValue<Object, Integer>> result = mrj.run(input, runtime);
 
         long stopTime = System.currentTimeMillis();
 
@@ -18,14 +18,12 @@ package uk.ac.man.cs.mapreduce.benchmarks;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
 import uk.ac.man.cs.mapreduce.*;
 
 public class PCA {
 
-    private abstract class Data {
-    }
-
-    private class MeanData extends Data {
+    private class MeanData {
 
         protected int rowNumber;
         protected int[] row;
@@ -36,84 +34,96 @@ public class PCA {
         }
     }
 
-    private class CovarianceData extends Data {
-
-        public int rowNumber, covNumber;
-        public int[] means;
-        public int[][] matrix;
+    
+    private final Pipeline<MeanData, Integer, Integer> pipeline;
+    
+    private final Broadcast<int[]> means = new Broadcast<>();
 
-        protected CovarianceData(int rowNumber, int covNumber, int[] means, int[][] matrix) {
-            this.rowNumber = rowNumber;
-            this.covNumber = covNumber;
-            this.means = means;
-            this.matrix = matrix;
-        }
-    };
+    private Random random = new Random();
     
-    private MapReduce<Data, Integer, Integer> mrj;
+    private int[][] matrix;
 
+    private List<MeanData> input;
+
+    // The row means are gathered at a barrier and broadcast, then each mean
+    // goes straight on to the covariance mapper for its row. Row r is paired
+    // with every row from r on, so the early rows weigh the most.
     public PCA() {
+        pipeline = Pipeline.from(new MapReduce<>(meanMapper, reducer))
+                .broadcast(means, () -> new int[matrix.length], current -> (row, mean) -> current[row] = mean,
+                        kv -> matrix.length - kv.getKey())
+                .then(new MapReduce<>(covarianceMapper, reducer));
     }
     
-    private Mapper<Data, Integer, Integer> meanMapper = new Mapper<Data, Integer, Integer>() {
+    private Mapper<MeanData, Integer, Integer> meanMapper = new Mapper<MeanData, Integer, Integer>() {
         
         @Override
-        public void map(Data input, Emitter<Integer, Integer> emitter) {
-            if (input instanceof MeanData) {
-                MeanData meanInput = (MeanData) input;
-
-                long sum = 0;
+        public void map(MeanData input, Emitter<Integer, Integer> emitter) {
+            long sum = 0;
 
-                for (int i : meanInput.row) {
-                    sum += i;
-                }
-
-                emitter.emit(meanInput.rowNumber, (int) (sum / (long) meanInput.row.length));
+            for (int i : input.row) {
+                sum += i;
             }
+
+            emitter.emit(input.rowNumber, (int) (sum / (long) input.row.length));
         }
     };
     
-    private Mapper<Data, Integer, Integer> covarianceMapper = new Mapper<Data, Integer, Integer>() {
+    private Mapper<KeyValue<Integer, Integer>, Integer, Integer> covarianceMapper = new Mapper<KeyValue<Integer, Integer>, Integer, Integer>() {
         
         @Override
-        public void map(Data input, Emitter<Integer, Integer> emitter) {
-            if (input instanceof CovarianceData) {
-                CovarianceData covInput = (CovarianceData) input;
+        public void map(KeyValue<Integer, Integer> input, Emitter<Integer, Integer> emitter) {
+            int[] current = means.get();
+            int rowNumber = input.getKey();
+            int[] row = matrix[rowNumber];
+            int rowMean = input.getValue();
 
+            for (int covNumber = rowNumber; covNumber < matrix.length; covNumber++) {
                 int sum = 0;
-                int[] row = covInput.matrix[covInput.rowNumber];
-                int[] cov = covInput.matrix[covInput.covNumber];
-                int rowMean = covInput.means[covInput.rowNumber];
-                int covMean = covInput.means[covInput.covNumber];
+                int[] cov = matrix[covNumber];
+                int covMean = current[covNumber];
 
                 for (int j = 0; j < row.length; j++) {
                     sum += (row[j] - rowMean) * (cov[j] - covMean);
                 }
 
-                sum /= covInput.matrix[covInput.rowNumber].length - 1;
+                sum /= row.length - 1;
 
-                emitter.emit(covInput.rowNumber * row.length + covInput.covNumber, sum);
+                emitter.emit(rowNumber * matrix.length + covNumber, sum);
             }
         }
     };
     
+    // Every key is emitted once, a second value means two keys collided.
     private Reducer<Integer, Integer> reducer = new Reducer<Integer, Integer>() {
         
         @Override
         public void reduce(Integer key, List<Integer> values, Emitter<Integer, Integer> emitter) {
+            if (values.size() != 1) {
+                throw new IllegalStateException("key " + key + " has " + values.size() + " values");
+            }
             emitter.emit(key, values.get(0));
         }
     };
 
+    public void setSeed(long seed) {
+        random = new Random(seed);
+    }
+
     public long run(int rows, int columns, int gridSize, int parallelism) throws Exception {
         return run(rows, columns, gridSize, parallelism, false);
     }
     
     public long run(int rows, int columns, int gridSize, int parallelism, boolean verbose) throws Exception {
-        Random random = new Random();
+        generate(rows, columns, gridSize);
 
-        int[][] matrix = new int[rows][columns];
-        int[] means = new int[rows];
+        try (MapReduceRuntime runtime = new MapReduceRuntime(parallelism)) {
+            return run(runtime, verbose);
+        }
+    }
+
+    public void generate(int rows, int columns, int gridSize) {
+        matrix = new int[rows][columns];
 
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < columns; j++) {
@@ -121,54 +131,29 @@ public class PCA {
             }
         }
 
-        List<Data> input;
-
-        List<KeyValue<Integer, Integer>> output;
-
-        long startTime = System.currentTimeMillis();
-
-        /* Split to calculate means */
-
         input = new ArrayList<>(rows);
 
         for (int i = 0; i < rows; i++) {
             input.add(new MeanData(i, matrix[i]));
         }
+    }
 
-        mrj = new MapReduce<>(meanMapper, reducer);
-
-        output = mrj.run(input, parallelism);
-
-        for (KeyValue<Integer, Integer> kvp : output) {
-            means[kvp.getKey()] = kvp.getValue();
-        }
-
-        /* Split to calculate covariance */
-
-        int k = 0;
-
-        input = new ArrayList<>((((rows * rows) - rows) / 2) + rows);
-
-        for (int i = 0; i < rows; i++) {
-            for (int j = i; j < columns; j++) {
-                input.add(new CovarianceData(i, j, means, matrix));
-            }
-        }
-
-        mrj = new MapReduce<>(covarianceMapper, reducer);
+    // Analyses the matrix of the last generate
+    public long run(MapReduceRuntime runtime) throws Exception {
+        return run(runtime, false);
+    }
 
-        output = mrj.run(input, parallelism);
+    public long run(MapReduceRuntime runtime, boolean verbose) throws Exception {
+        LongAdder sum = new LongAdder();
 
-        long sum = 0;
+        long startTime = System.currentTimeMillis();
 
-        for (KeyValue<Integer, Integer> kvp : output) {
-            sum += kvp.getValue();
-        }
+        pipeline.runInto(input, runtime, (key, value) -> sum.add(value));
 
         long stopTime = System.currentTimeMillis();
 
         if (verbose) {
-            System.out.println("PRINCIPLE COMPONENT ANALYSIS - " + rows + "x" + columns);
+            System.out.println("PRINCIPLE COMPONENT ANALYSIS - " + matrix.length + "x" + matrix[0].length);
             System.out.println("         SUM " + sum);
             System.out.println("          in " + (stopTime - startTime));
         }
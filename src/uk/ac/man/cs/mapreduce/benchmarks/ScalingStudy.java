@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 University of Manchester
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.man.cs.mapreduce.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import uk.ac.man.cs.mapreduce.MapReduceRuntime;
+
+/*
+ * Runs each benchmark at every parallelism from 1 to N and reports how well it
+ * scales. Every point gets one runtime, which some warm-up runs prepare for
+ * the measured runs, and speedup and efficiency are taken from the medians
+ * against one thread. Jobs are timed here, whole, so that every benchmark is
+ * measured alike and input generation stays outside the timings.
+ */
+public class ScalingStudy {
+
+    private static final long SEED = 0x2016L;
+
+    private interface Workload {
+
+        void run(MapReduceRuntime runtime) throws Exception;
+    }
+
+    private static class Result {
+
+        private final String benchmark;
+        private final int parallelism;
+        private final double median, p95;
+        private double speedup, efficiency;
+
+        // Times in nanoseconds, reported in milliseconds.
+        private Result(String benchmark, int parallelism, long[] times) {
+            this.benchmark = benchmark;
+            this.parallelism = parallelism;
+            Arrays.sort(times);
+            median = ((times.length % 2 == 1) ? times[times.length / 2]
+                    : (times[times.length / 2 - 1] + times[times.length / 2]) / 2.0) / 1e6;
+            p95 = times[(int) Math.ceil(0.95 * times.length) - 1] / 1e6;
+        }
+    }
+
+    private final int maxParallelism, warmups, repeats;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Workload> workloads = new ArrayList<>();
+
+    public ScalingStudy(int maxParallelism, int warmups, int repeats) {
+        this.maxParallelism = maxParallelism;
+        this.warmups = warmups;
+        this.repeats = repeats;
+    }
+
+    private void add(String spec) throws Exception {
+        int split = spec.indexOf('=');
+        String name = (split < 0) ? spec : spec.substring(0, split);
+        String[] args = (split < 0) ? new String[0] : spec.substring(split + 1).split(",");
+
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "wordcount": {
+                WordCount wc = new WordCount();
+                List<String> input = Splitter.fileToStringChunks(args[0], Integer.decode(args[1]));
+                add(name, runtime -> wc.run(input, runtime, false));
+                break;
+            }
+            case "histogram": {
+                Histogram hist = new Histogram();
+                int bufferSize = Integer.decode(args[1]);
+                bufferSize += (3 - bufferSize % 3) % 3;
+                List<ByteBuffer> input = Splitter.fileToMappedBuffers(args[0], bufferSize, Histogram.getBitmapDataOffset(args[0]));
+                add(name, runtime -> hist.runBuffers(input, runtime, false));
+                break;
+            }
+            case "linearregression": {
+                LinearRegression lr = new LinearRegression();
+                List<ByteBuffer> input = Splitter.fileToMappedBuffers(args[0], Integer.decode(args[1]));
+                add(name, runtime -> lr.runBuffers(input, runtime, false));
+                break;
+            }
+            case "stringmatch": {
+                StringMatch sm = new StringMatch();
+                List<String> input = Splitter.fileToStringChunks(args[0], Integer.decode(args[1]));
+                add(name, runtime -> sm.run(input, runtime, false));
+                break;
+            }
+            case "kmean": {
+                KMean km = new KMean();
+                int dimensions = arg(args, 0, 3), clusters = arg(args, 1, 100);
+                int gridSize = arg(args, 2, 1000), points = arg(args, 3, 100000);
+                km.setSeed(SEED);
+                km.generate(dimensions, clusters, gridSize, points);
+                add(name, km::run);
+                break;
+            }
+            case "pca": {
+                PCA pca = new PCA();
+                int rows = arg(args, 0, 1000), columns = arg(args, 1, 1000), gridSize = arg(args, 2, 1000);
+                pca.setSeed(SEED);
+                pca.generate(rows, columns, gridSize);
+                add(name, pca::run);
+                break;
+            }
+            case "matrixmultiply": {
+                MatrixMultiply mm = new MatrixMultiply();
+                int matrixSize = arg(args, 0, 500);
+                mm.setSeed(SEED);
+                mm.generate(matrixSize);
+                add(name, mm::run);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown benchmark " + name);
+        }
+    }
+
+    private void add(String name, Workload workload) {
+        names.add(name);
+        workloads.add(workload);
+    }
+
+    private static int arg(String[] args, int index, int defaultValue) {
+        return (index < args.length && !args[index].isEmpty()) ? Integer.decode(args[index]) : defaultValue;
+    }
+
+    private List<Result> run() throws Exception {
+        List<Result> results = new ArrayList<>();
+
+        for (int i = 0; i < workloads.size(); i++) {
+            Result base = null;
+
+            for (int p = 1; p <= maxParallelism; p++) {
+                long[] times = new long[repeats];
+
+                try (MapReduceRuntime runtime = new MapReduceRuntime(p)) {
+                    for (int w = 0; w < warmups; w++) {
+                        workloads.get(i).run(runtime);
+                    }
+
+                    for (int r = 0; r < repeats; r++) {
+                        System.gc();
+                        long start = System.nanoTime();
+                        workloads.get(i).run(runtime);
+                        times[r] = System.nanoTime() - start;
+                    }
+                }
+
+                Result result = new Result(names.get(i), p, times);
+                if (base == null) {
+                    base = result;
+                }
+                result.speedup = (result.median > 0) ? base.median / result.median : Double.NaN;
+                result.efficiency = result.speedup / p;
+                results.add(result);
+
+                System.err.printf("%s p=%d median=%.3fms%n", result.benchmark, p, result.median);
+            }
+        }
+
+        return results;
+    }
+
+    private static String toCsv(List<Result> results) {
+        StringBuilder out = new StringBuilder("benchmark,parallelism,median_ms,p95_ms,speedup,efficiency\n");
+        for (Result r : results) {
+            out.append(String.format(Locale.ROOT, "%s,%d,%.3f,%.3f,%.3f,%.3f%n",
+                    r.benchmark, r.parallelism, r.median, r.p95, r.speedup, r.efficiency));
+        }
+        return out.toString();
+    }
+
+    private static String toJson(List<Result> results) {
+        StringBuilder out = new StringBuilder("[");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            out.append(i == 0 ? "\n" : ",\n").append(String.format(Locale.ROOT,
+                    "  {\"benchmark\": \"%s\", \"parallelism\": %d, \"median_ms\": %.3f, \"p95_ms\": %.3f, \"speedup\": %.3f, \"efficiency\": %.3f}",
+                    r.benchmark, r.parallelism, r.median, r.p95, r.speedup, r.efficiency));
+        }
+        return out.append("\n]\n").toString();
+    }
+
+    public static void main(String[] args) {
+        try {
+            int maxParallelism = Integer.decode(args[0]);
+
+            int warmups = Integer.decode(args[1]);
+
+            int repeats = Integer.decode(args[2]);
+
+            boolean json = args[3].equalsIgnoreCase("json");
+
+            ScalingStudy study = new ScalingStudy(maxParallelism, warmups, repeats);
+
+            if (args.length > 4) {
+                for (int i = 4; i < args.length; i++) {
+                    study.add(args[i]);
+                }
+            } else {
+                study.add("kmean");
+                study.add("pca");
+                study.add("matrixmultiply");
+            }
+
+            List<Result> results = study.run();
+
+            System.out.print(json ? toJson(results) : toCsv(results));
+
+        } catch (Exception e) {
+            System.out.println("USAGE: <max threads> <warm-ups> <repeats> <csv|json> [<benchmark>[=<arguments>] ...]");
+            System.out.println("  wordcount=<input file>,<buffer size>");
+            System.out.println("  histogram=<bitmap file>,<buffer size>");
+            System.out.println("  linearregression=<input file>,<buffer size>");
+            System.out.println("  stringmatch=<input file>,<buffer size>");
+            System.out.println("  kmean[=<dimensions>,<clusters>,<grid size>,<points>]");
+            System.out.println("  pca[=<rows>,<columns>,<grid size>]");
+            System.out.println("  matrixmultiply[=<size>]");
+            System.err.println(e);
+        }
+    }
+}
@@ -16,8 +16,22 @@
 package uk.ac.man.cs.mapreduce.benchmarks;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Splitter {
 
@@ -44,6 +58,141 @@ public class Splitter {
         return strings;
     }
 
+    // Same buffering as fileToStringBuffers, but each buffer is only read
+    // when the stream pulls it; closing the stream closes the file.
+    public static Stream<String> fileToStringStream(String filename, int bufferSize)
+            throws FileNotFoundException, IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+
+        Iterator<String> buffers = new Iterator<String>() {
+            StringBuilder str = new StringBuilder();
+            String line;
+            String next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    next = read();
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String buffer = next;
+                next = null;
+                return buffer;
+            }
+
+            private String read() {
+                try {
+                    if (line == null) {
+                        line = reader.readLine();
+                    }
+                    while (line != null) {
+                        if (str.length() > 0 && (str.length() + line.length()) > bufferSize) {
+                            String buffer = str.toString();
+                            str.delete(0, str.length());
+                            return buffer;
+                        }
+                        str.append(line).append('\n');
+                        line = reader.readLine();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (str.length() > 0) {
+                    String buffer = str.toString();
+                    str.delete(0, str.length());
+                    return buffer;
+                }
+                return null;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                buffers, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    // Divides the file into byte ranges of bufferSize and decodes them in
+    // parallel. Each chunk holds the lines that start inside its range, so
+    // every line ends up in exactly one chunk whatever its length.
+    public static List<String> fileToStringChunks(String filename, int bufferSize)
+            throws IOException {
+        Charset charset = Charset.defaultCharset();
+        return fileToChunks(filename, bufferSize, bytes -> new String(bytes.array(), charset));
+    }
+
+    // Line-aligned chunks of raw bytes, for mappers that tokenise without
+    // decoding.
+    public static List<ByteBuffer> fileToByteChunks(String filename, int bufferSize)
+            throws IOException {
+        return fileToChunks(filename, bufferSize, bytes -> bytes);
+    }
+
+    private static <T> List<T> fileToChunks(String filename, int bufferSize, Function<ByteBuffer, T> decoder)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) ((size + bufferSize - 1) / bufferSize);
+            return IntStream.range(0, chunks).parallel().mapToObj(chunk -> {
+                try {
+                    long start = lineStart(channel, chunk * (long) bufferSize, size);
+                    long end = lineStart(channel, (chunk + 1) * (long) bufferSize, size);
+                    if (start >= end) {
+                        return null;
+                    }
+                    ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+                    while (bytes.hasRemaining()) {
+                        if (channel.read(bytes, start + bytes.position()) < 0) {
+                            throw new EOFException(filename);
+                        }
+                    }
+                    bytes.flip();
+                    return decoder.apply(bytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).filter(chunk -> chunk != null).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Finds the first position at or after the given one that begins a line.
+    private static long lineStart(FileChannel channel, long position, long size)
+            throws IOException {
+        if (position <= 0) {
+            return 0;
+        }
+        ByteBuffer block = ByteBuffer.allocate(4096);
+        long offset = position - 1;
+        while (offset < size) {
+            block.clear();
+            int count = channel.read(block, offset);
+            if (count <= 0) {
+                break;
+            }
+            for (int i = 0; i < count; i++) {
+                if (block.get(i) == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += count;
+        }
+        return size;
+    }
+
     public static List<String> fileToStrings(String filename)
             throws FileNotFoundException, IOException {
         List<String> strings = new ArrayList<>();
@@ -64,13 +213,13 @@ public class Splitter {
             int size = 0;
             String line;
             while ((line = reader.readLine()) != null) {
-                if (size + line.length() > bufferSize) {
+                if (size + line.length() > bufferSize && lines.size() > 0) {
                     buffer.add(lines.toArray(new String[0]));
                     lines.clear();
                     size = 0;
-                } else {
-                    lines.add(line);
                 }
+                lines.add(line);
+                size += line.length();
             }
             if (lines.size() > 0) {
                 buffer.add(lines.toArray(new String[0]));
@@ -95,7 +244,9 @@ public class Splitter {
 
                 int count = reader.read(buffer);
 
-                if (count != bufferSize) {
+                if (count <= 0) {
+                    break;
+                } else if (count != bufferSize) {
                     byte[] reducedBuffer = new byte[count];
 
                     System.arraycopy(buffer, 0, reducedBuffer, 0, count);
@@ -109,5 +260,32 @@ public class Splitter {
         }
         return buffers;
     }
+
+    public static List<ByteBuffer> fileToMappedBuffers(String filename, int bufferSize)
+            throws IOException {
+        return fileToMappedBuffers(filename, bufferSize, 0);
+    }
+
+    // Slices read-only mappings of the file instead of copying it onto the
+    // heap. Each mapping is limited to 2GB, so larger files are mapped as
+    // several regions, each a whole number of buffers long.
+    public static List<ByteBuffer> fileToMappedBuffers(String filename, int bufferSize, long offset)
+            throws IOException {
+        ArrayList<ByteBuffer> buffers = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long regionSize = (Integer.MAX_VALUE / bufferSize) * (long) bufferSize;
+            for (long position = offset; position < size; position += regionSize) {
+                ByteBuffer region = channel.map(
+                        FileChannel.MapMode.READ_ONLY, position, Math.min(regionSize, size - position));
+                for (int start = 0; start < region.capacity(); start += bufferSize) {
+                    region.limit(Math.min(region.capacity(), start + bufferSize)).position(start);
+                    buffers.add(region.slice());
+                    region.clear();
+                }
+            }
+        }
+        return buffers;
+    }
 }
 
@@ -27,10 +27,11 @@ public class StringMatch {
     private char[] testKey1, testKey2, testKey3, testKey4;
     private final char offset = 5;
     
-    private final MapReduce<String, String, Integer> mrj;
+    public final MapReduce<String, String, Integer> mrj;
 
     public StringMatch() {
         mrj = new MapReduce<>(mapper, reducer);
+        mrj.setInputWeight(String::length);
 
         testKey1 = hash(key1);
         testKey2 = hash(key2);
@@ -98,9 +99,15 @@ public class StringMatch {
     }
 
     public long run(List<String> input, int parallelism, boolean verbose) throws Exception {
+        try (MapReduceRuntime runtime = new MapReduceRuntime(parallelism)) {
+            return run(input, runtime, verbose);
+        }
+    }
+
+    public long run(List<String> input, MapReduceRuntime runtime, boolean verbose) throws Exception {
         long startTime = System.currentTimeMillis();
 
-        List<KeyValue<String, Integer>> result = mrj.run(input, parallelism);
+        List<KeyValue<String, Integer>> result = mrj.run(input, runtime);
 
         long stopTime = System.currentTimeMillis();
 
@@ -150,7 +157,7 @@ public class StringMatch {
             
             StringMatch sm = new StringMatch();
 
-            sm.run(Splitter.fileToStringBuffers(inputFile, bufferSize), parallelism, verbose);
+            sm.run(Splitter.fileToStringChunks(inputFile, bufferSize), parallelism, verbose);
             
             //-------------- END --------------
             
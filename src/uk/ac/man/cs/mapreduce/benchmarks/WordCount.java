@@ -15,23 +15,30 @@
  */
 package uk.ac.man.cs.mapreduce.benchmarks;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
 import uk.ac.man.cs.mapreduce.*;
 
 public class WordCount {
     
     public final MapReduce<String, String, Integer> mrj;
     
-    private final Integer one = 1;
+    public final MapReduce<ByteBuffer, ByteSlice, Integer> bytesMrj;
 
     public WordCount() {
         mrj = new MapReduce<>(mapper, reducer);
+        mrj.setInputWeight(String::length);
+        bytesMrj = new MapReduce<>(bytesMapper, bytesReducer);
+        bytesMrj.setInputWeight(ByteBuffer::remaining);
     }
     
-    private Mapper<String, String, Integer> mapper = new Mapper<String, String, Integer>() {
+    private IntMapper<String, String> mapper = new IntMapper<String, String>() {
         @Override
-        public void map(String input, Emitter<String, Integer> emitter) {
+        public void mapInt(String input, IntEmitter<String> emitter) {
             String data = input.toUpperCase();
             int i = 0, start;
             int length = data.length();
@@ -44,16 +51,93 @@ public class WordCount {
                     i++;
                 }
                 if (i > start) {
-                    emitter.emit(data.substring(start, i), one);
+                    emitter.emit(data.substring(start, i), 1);
                 }
             }
         }
     };
     
-    private Reducer<String, Integer> reducer = new Reducer<String, Integer>() {
+    private IntReducer<String> reducer = new IntReducer<String>() {
         @Override
-        public void reduce(String key, List<Integer> values, Emitter<String, Integer> emitter) {
-            emitter.emit(key, values.size());
+        public void reduce(String key, int[] values, int count, IntEmitter<String> emitter) {
+            emitter.emit(key, count);
+        }
+    };
+    
+    // ASCII only: words are folded to upper case in a tokeniser's scratch
+    // buffer and interned there, so a word it has already seen costs no
+    // allocation at all. Tokenisers are lent out per input from a pool that
+    // each run starts afresh, so interned words do not outlive the job.
+    private static final int INTERNED_WORDS = 1 << 16;
+    
+    private volatile ConcurrentLinkedQueue<Tokeniser> tokenisers = new ConcurrentLinkedQueue<>();
+    
+    private IntMapper<ByteBuffer, ByteSlice> bytesMapper = new IntMapper<ByteBuffer, ByteSlice>() {
+        @Override
+        public void mapInt(ByteBuffer input, IntEmitter<ByteSlice> emitter) {
+            if (!input.hasArray()) {
+                byte[] bytes = new byte[input.remaining()];
+                input.duplicate().get(bytes);
+                input = ByteBuffer.wrap(bytes);
+            }
+            ConcurrentLinkedQueue<Tokeniser> pool = tokenisers;
+            Tokeniser tokeniser = pool.poll();
+            if (tokeniser == null) {
+                tokeniser = new Tokeniser();
+            }
+            try {
+                tokenise(input, tokeniser, emitter);
+            } finally {
+                pool.offer(tokeniser);
+            }
+        }
+        
+        private void tokenise(ByteBuffer input, Tokeniser tokeniser, IntEmitter<ByteSlice> emitter) {
+            byte[] data = input.array();
+            byte[] word = tokeniser.word;
+            int i = input.arrayOffset() + input.position(), length, hash;
+            int limit = input.arrayOffset() + input.limit();
+            while (i < limit) {
+                while (i < limit && FOLD[data[i] & 0xFF] < 'A') {
+                    i++;
+                }
+                length = 0;
+                hash = 0;
+                while (i < limit) {
+                    byte b = FOLD[data[i] & 0xFF];
+                    if (b == 0) {
+                        break;
+                    }
+                    if (length == word.length) {
+                        word = tokeniser.word = Arrays.copyOf(word, length << 1);
+                    }
+                    word[length++] = b;
+                    hash = 31 * hash + b;
+                    i++;
+                }
+                if (length > 0) {
+                    emitter.emit(tokeniser.interner.intern(word, 0, length, hash), 1);
+                }
+            }
+        }
+    };
+    
+    // Maps each byte to its upper-case letter, an apostrophe to itself and
+    // anything else that cannot be part of a word to zero.
+    private static final byte[] FOLD = new byte[256];
+    
+    static {
+        for (int c = 'A'; c <= 'Z'; c++) {
+            FOLD[c] = (byte) c;
+            FOLD[c | 0x20] = (byte) c;
+        }
+        FOLD['\''] = '\'';
+    }
+    
+    private IntReducer<ByteSlice> bytesReducer = new IntReducer<ByteSlice>() {
+        @Override
+        public void reduce(ByteSlice key, int[] values, int count, IntEmitter<ByteSlice> emitter) {
+            emitter.emit(key, count);
         }
     };
     
@@ -64,19 +148,64 @@ public class WordCount {
         }
         return diff;
     };
+    
+    private Comparator<KeyValue<ByteSlice, Integer>> bytesSorter = (kvp1, kvp2) -> {
+        int diff = kvp2.getValue().compareTo(kvp1.getValue());
+        if (diff == 0) {
+            diff = kvp1.getKey().compareTo(kvp2.getKey());
+        }
+        return diff;
+    };
 
     public long run(List<String> input, int parallelism) throws Exception {
         return run(input, parallelism, false);
     }
     
     public long run(List<String> input, int parallelism, boolean verbose) throws Exception {
+        try (MapReduceRuntime runtime = new MapReduceRuntime(parallelism)) {
+            return run(input, runtime, verbose);
+        }
+    }
+    
+    public long run(List<String> input, MapReduceRuntime runtime, boolean verbose) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        List<KeyValue<String, Integer>> results = mrj.run(input, runtime, sorter);
+
+        return report(results, startTime, verbose);
+    }
+    
+    public long run(Stream<String> input, int parallelism, boolean verbose) throws Exception {
         long startTime = System.currentTimeMillis();
 
-        List<KeyValue<String, Integer>> results = mrj.run(input, parallelism);
+        List<KeyValue<String, Integer>> results;
+        
+        try (MapReduceRuntime runtime = new MapReduceRuntime(parallelism)) {
+            results = mrj.run(input, runtime, sorter);
+        }
 
+        return report(results, startTime, verbose);
+    }
+    
+    public long runBytes(List<ByteBuffer> input, int parallelism, boolean verbose) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        tokenisers = new ConcurrentLinkedQueue<>();
+        List<KeyValue<ByteSlice, Integer>> results = bytesMrj.run(input, parallelism, bytesSorter);
+
+        return report(results, startTime, verbose);
+    }
+    
+    // Runs bytesMrj on a runtime that outlives the job, unsorted.
+    public List<KeyValue<ByteSlice, Integer>> runBytes(List<ByteBuffer> input, MapReduceRuntime runtime) {
+        tokenisers = new ConcurrentLinkedQueue<>();
+        return bytesMrj.run(input, runtime);
+    }
+    
+    private <W> long report(List<KeyValue<W, Integer>> results, long startTime, boolean verbose) {
         int wordCount = 0;
 
-        for (KeyValue<String, Integer> kvp : results) {
+        for (KeyValue<W, Integer> kvp : results) {
             wordCount += kvp.getValue();
         }
 
@@ -97,6 +226,13 @@ public class WordCount {
         return stopTime - startTime;
     }
 
+    private static class Tokeniser {
+        
+        private byte[] word = new byte[64];
+        
+        private final ByteSlice.Interner interner = new ByteSlice.Interner(INTERNED_WORDS);
+    }
+
     public static void main(String[] args) {
         try {
             int parallelism = Integer.decode(args[0]);
@@ -111,7 +247,9 @@ public class WordCount {
             
             WordCount wc = new WordCount();
             
-            wc.run(Splitter.fileToStringBuffers(inputFile, bufferSize), parallelism, verbose);
+            try (Stream<String> input = Splitter.fileToStringStream(inputFile, bufferSize)) {
+                wc.run(input, parallelism, verbose);
+            }
             
             //-------------- END --------------
             